@@ -2,11 +2,13 @@ package com.messenger;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
  * Main entry point for the Secure Messenger Application
  */
 @SpringBootApplication
+@EnableScheduling
 public class MessengerApplication {
     
     public static void main(String[] args) {
@@ -3,6 +3,7 @@ package com.messenger.call;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
 import java.time.LocalDateTime;
@@ -12,13 +13,15 @@ import java.time.LocalDateTime;
  */
 @Data
 @Entity
-@Table(name = "calls")
+@Table(name = "calls",
+        indexes = @Index(name = "idx_calls_caller_receiver_time", columnList = "caller_id, receiver_id, start_time, id"))
 @NoArgsConstructor
 @AllArgsConstructor
 public class Call {
     
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "snowflake")
+    @GenericGenerator(name = "snowflake", strategy = "com.messenger.id.SnowflakeIdentifierGenerator")
     private Long id;
     
     @Column(name = "caller_id", nullable = false)
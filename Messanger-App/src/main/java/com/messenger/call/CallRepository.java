@@ -1,9 +1,12 @@
 package com.messenger.call;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
 /**
@@ -24,6 +27,25 @@ public interface CallRepository extends JpaRepository<Call, Long> {
             "ORDER BY c.startTime DESC")
     List<Call> findCallsBetweenUsers(Long user1Id, Long user2Id);
     
+    /**
+     * Find a page of calls from one user to another, newest first,
+     * strictly before a (start time, id) position
+     * @param callerId Caller ID
+     * @param receiverId Receiver ID
+     * @param before Start time of the position
+     * @param beforeId ID of the position among calls with the same start time
+     * @param pageable Page size
+     * @return List of calls
+     */
+    @Query("SELECT c FROM Call c WHERE c.callerId = :callerId AND c.receiverId = :receiverId " +
+            "AND c.startTime <= :before AND (c.startTime < :before OR c.id < :beforeId) " +
+            "ORDER BY c.startTime DESC, c.id DESC")
+    List<Call> findPageByCallerAndReceiver(@Param("callerId") Long callerId,
+                                           @Param("receiverId") Long receiverId,
+                                           @Param("before") LocalDateTime before,
+                                           @Param("beforeId") Long beforeId,
+                                           Pageable pageable);
+    
     /**
      * Find all calls made by a user
      * @param callerId Caller ID
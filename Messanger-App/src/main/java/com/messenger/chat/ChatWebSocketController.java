@@ -27,15 +27,8 @@ public class ChatWebSocketController {
      */
     @MessageMapping("/chat.send")
     public void sendPrivateMessage(@Payload Message message) {
-        // Save the message to the database
-        Message savedMessage = messageService.saveMessage(message);
-        
-        // Send the message to the recipient's private queue
-        messagingTemplate.convertAndSendToUser(
-                String.valueOf(message.getRecipientId()),
-                "/queue/messages",
-                savedMessage
-        );
+        // Save the message and deliver it to the recipient's private queue
+        messageService.saveMessage(message);
     }
     
     /**
@@ -0,0 +1,203 @@
+package com.messenger.chat;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Single-writer execution for conversations.
+ *
+ * Every conversation has its own mailbox, which runs its tasks one at a time
+ * and in submission order on a fixed worker pool. All writes, sequence
+ * assignment and delivery for a conversation therefore happen in one order,
+ * without database row locks, while different conversations proceed in
+ * parallel.
+ *
+ * Mailboxes are kept in a concurrent map. A task is queued while holding
+ * only that conversation's entry, so senders to different conversations do
+ * not contend. Idle mailboxes are dropped by a background sweep, not on the
+ * send path.
+ *
+ * Mailboxes are not pinned to a worker by hash. Any free worker runs a
+ * mailbox's next task, so a slow insert holds up only its own conversation.
+ * Tasks mostly wait on the database and the message broker, so the pool is
+ * sized for blocking I/O rather than for CPUs. Writes across all
+ * conversations are still bounded by the database connection pool.
+ *
+ * Ordering is guaranteed per application instance.
+ */
+@Component
+public class ConversationExecutor {
+    
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    
+    @Autowired
+    public ConversationExecutor(@Value("${chat.mailbox.workers:0}") int workerCount) {
+        int count = workerCount > 0 ? workerCount : 4 * Runtime.getRuntime().availableProcessors();
+        AtomicInteger index = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(count, runnable -> {
+            Thread thread = new Thread(runnable, "conversation-worker-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Key for the one-to-one conversation between two users
+     * @param user1Id First user ID
+     * @param user2Id Second user ID
+     * @return Conversation key, identical for both directions
+     */
+    public static String directKey(Long user1Id, Long user2Id) {
+        return user1Id <= user2Id ? "d:" + user1Id + ":" + user2Id : "d:" + user2Id + ":" + user1Id;
+    }
+    
+    /**
+     * Key for a group conversation
+     * @param groupId Group ID
+     * @return Conversation key
+     */
+    public static String groupKey(Long groupId) {
+        return "g:" + groupId;
+    }
+    
+    /**
+     * Queue a task on the conversation's mailbox
+     * @param conversationKey Conversation key
+     * @param task Task receiving the conversation's state
+     * @return Future completed with the task's result
+     */
+    public <T> CompletableFuture<T> submit(String conversationKey, Function<ConversationState, T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        mailboxes.compute(conversationKey, (key, mailbox) -> {
+            Mailbox target = mailbox != null ? mailbox : new Mailbox(key);
+            target.enqueue(task, result, executor);
+            return target;
+        });
+        return result;
+    }
+    
+    /**
+     * Run a task on the conversation's mailbox and wait for its result.
+     * Must not be called from inside another conversation task.
+     * @param conversationKey Conversation key
+     * @param task Task receiving the conversation's state
+     * @return The task's result
+     */
+    public <T> T execute(String conversationKey, Function<ConversationState, T> task) {
+        try {
+            return submit(conversationKey, task).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+    
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Drop mailboxes with nothing queued that were not used since the last
+     * sweep, along with their cached state. Each check holds only that
+     * mailbox's entry, so sends to other conversations carry on meanwhile.
+     */
+    @Scheduled(fixedDelayString = "${chat.mailbox.sweep-interval:60000}")
+    public void sweepIdleMailboxes() {
+        for (String key : mailboxes.keySet()) {
+            mailboxes.computeIfPresent(key, (k, mailbox) -> mailbox.retainAfterSweep() ? mailbox : null);
+        }
+    }
+    
+    /**
+     * Per-conversation state, only ever touched by the conversation's current task
+     */
+    public static class ConversationState {
+        
+        private final String conversationKey;
+        private long lastSequence = -1L;
+        
+        ConversationState(String conversationKey) {
+            this.conversationKey = conversationKey;
+        }
+        
+        public String getConversationKey() {
+            return conversationKey;
+        }
+        
+        /**
+         * Get the last assigned sequence number, loading it on first use
+         * @param loader Supplies the last persisted sequence number
+         * @return Last assigned sequence number
+         */
+        public long getLastSequence(LongSupplier loader) {
+            if (lastSequence < 0) {
+                lastSequence = loader.getAsLong();
+            }
+            return lastSequence;
+        }
+        
+        /**
+         * Record a sequence number once the write using it has succeeded
+         * @param sequence Assigned sequence number
+         */
+        public void setLastSequence(long sequence) {
+            this.lastSequence = sequence;
+        }
+    }
+    
+    /**
+     * A conversation's queue: each task starts once the previous one has
+     * finished, on whichever worker is free. Only touched while holding the
+     * conversation's entry in the mailbox map.
+     */
+    private static class Mailbox {
+        
+        private final ConversationState state;
+        private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+        private boolean used;
+        
+        Mailbox(String conversationKey) {
+            this.state = new ConversationState(conversationKey);
+        }
+        
+        <T> void enqueue(Function<ConversationState, T> task, CompletableFuture<T> result, ExecutorService executor) {
+            // Runs whether or not the previous task failed, and never fails itself
+            tail = tail.handleAsync((ignored, error) -> {
+                try {
+                    result.complete(task.apply(state));
+                } catch (RuntimeException | Error e) {
+                    result.completeExceptionally(e);
+                }
+                return null;
+            }, executor);
+            used = true;
+        }
+        
+        /**
+         * @return false if the mailbox is idle and unused since the last sweep, and can go
+         */
+        boolean retainAfterSweep() {
+            boolean retain = used || !tail.isDone();
+            used = false;
+            return retain;
+        }
+    }
+}
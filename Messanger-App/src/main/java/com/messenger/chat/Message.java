@@ -1,8 +1,11 @@
 package com.messenger.chat;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.messenger.encryption.CiphertextEnvelope;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
 import java.time.LocalDateTime;
@@ -12,13 +15,18 @@ import java.time.LocalDateTime;
  */
 @Data
 @Entity
-@Table(name = "messages")
+@Table(name = "messages",
+        indexes = {
+                @Index(name = "idx_messages_sender_recipient_time", columnList = "sender_id, recipient_id, timestamp, id"),
+                @Index(name = "idx_messages_self_destruct_time", columnList = "self_destruct_time")
+        })
 @NoArgsConstructor
 @AllArgsConstructor
 public class Message {
     
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "snowflake")
+    @GenericGenerator(name = "snowflake", strategy = "com.messenger.id.SnowflakeIdentifierGenerator")
     private Long id;
     
     @Column(name = "sender_id", nullable = false)
@@ -27,21 +35,50 @@ public class Message {
     @Column(name = "recipient_id", nullable = false)
     private Long recipientId;
     
-    @Column(nullable = false, length = 10000)
+    /**
+     * Message text, or null when an encrypted payload is kept in {@link #ciphertext}
+     */
+    @Column(length = 10000)
     private String content;
     
+    /**
+     * Encrypted payload in binary {@link CiphertextEnvelope} form
+     */
+    @JsonIgnore
+    @Column(name = "ciphertext", length = 10000)
+    private byte[] ciphertext;
+    
     @Column(name = "is_encrypted", nullable = false)
     private boolean encrypted;
     
     @Column(name = "timestamp", nullable = false)
     private LocalDateTime timestamp;
     
+    /**
+     * Position of the message in its conversation, assigned by the conversation's single writer
+     */
+    @Column(name = "sequence_number")
+    private Long sequenceNumber;
+    
     @Column(name = "is_read")
     private boolean read;
     
     @Column(name = "self_destruct_time")
     private LocalDateTime selfDestructTime;
     
+    /**
+     * Get the message content. Binary ciphertext is rendered in the Base64
+     * wire form clients exchange, so storage stays binary and Base64 is
+     * only produced at the JSON edge.
+     * @return Message content
+     */
+    public String getContent() {
+        if (content == null && ciphertext != null) {
+            return CiphertextEnvelope.toBase64(ciphertext);
+        }
+        return content;
+    }
+    
     @PrePersist
     protected void onCreate() {
         timestamp = LocalDateTime.now();
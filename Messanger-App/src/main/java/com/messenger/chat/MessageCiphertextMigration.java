@@ -0,0 +1,91 @@
+package com.messenger.chat;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Migrates encrypted messages from Base64 text to binary ciphertext storage.
+ * Rows are converted in small batches in ID order so the migration can run
+ * alongside normal traffic; converting does not need the message keys.
+ */
+@Component
+@DependsOn("entityManagerFactory")
+public class MessageCiphertextMigration {
+    
+    private final MessageRepository messageRepository;
+    private final MessageService messageService;
+    private final JdbcTemplate jdbcTemplate;
+    private final boolean binaryCiphertext;
+    private final boolean migrate;
+    
+    private long lastMigratedId = 0L;
+    private volatile boolean finished;
+    
+    @Autowired
+    public MessageCiphertextMigration(MessageRepository messageRepository,
+                                      MessageService messageService,
+                                      JdbcTemplate jdbcTemplate,
+                                      @Value("${encryption.binary-storage.enabled:true}") boolean binaryCiphertext,
+                                      @Value("${encryption.binary-storage.migrate:false}") boolean migrate) {
+        this.messageRepository = messageRepository;
+        this.messageService = messageService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.binaryCiphertext = binaryCiphertext;
+        this.migrate = migrate;
+    }
+    
+    /**
+     * Binary rows leave the text column empty, which schema updates alone
+     * cannot allow on tables created before the ciphertext column existed.
+     * The ALTER locks the whole table, so it only runs while the column is
+     * still NOT NULL.
+     */
+    @PostConstruct
+    public void allowEmptyContent() {
+        if (!binaryCiphertext) {
+            return;
+        }
+        
+        String nullable = jdbcTemplate.query(
+                "SELECT is_nullable FROM information_schema.columns " +
+                        "WHERE table_schema = current_schema() AND table_name = 'messages' AND column_name = 'content'",
+                rs -> rs.next() ? rs.getString(1) : null);
+        if ("NO".equals(nullable)) {
+            jdbcTemplate.execute("ALTER TABLE messages ALTER COLUMN content DROP NOT NULL");
+        }
+    }
+    
+    /**
+     * Convert the next batch of Base64 messages to binary ciphertext
+     */
+    @Scheduled(fixedDelayString = "${encryption.binary-storage.migrate-interval:10000}")
+    public void migrateBatch() {
+        if (!migrate || finished) {
+            return;
+        }
+        
+        List<Message> batch =
+                messageRepository.findTop500ByEncryptedTrueAndCiphertextIsNullAndIdGreaterThanOrderByIdAsc(lastMigratedId);
+        if (batch.isEmpty()) {
+            finished = true;
+            return;
+        }
+        
+        List<Message> converted = new ArrayList<>(batch.size());
+        for (Message message : batch) {
+            if (messageService.toBinaryCiphertext(message)) {
+                converted.add(message);
+            }
+            lastMigratedId = message.getId();
+        }
+        messageRepository.saveAll(converted);
+    }
+}
@@ -3,6 +3,7 @@ package com.messenger.chat;
 import com.messenger.user.User;
 import com.messenger.user.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
@@ -93,6 +94,33 @@ public class MessageController {
         }
     }
     
+    /**
+     * Get the raw binary ciphertext of an encrypted message, for clients
+     * that do not want the Base64 JSON form
+     * @param messageId Message ID
+     * @param authentication Current user's authentication
+     * @return Ciphertext envelope bytes
+     */
+    @GetMapping(value = "/{messageId}/ciphertext", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<byte[]> getCiphertext(
+            @PathVariable Long messageId,
+            Authentication authentication) {
+        
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        
+        Message message = messageService.getMessageById(messageId);
+        if (message == null || message.getCiphertext() == null) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        // Only the participants of the conversation can read the ciphertext
+        if (!message.getSenderId().equals(currentUser.getId()) && !message.getRecipientId().equals(currentUser.getId())) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        return ResponseEntity.ok(message.getCiphertext());
+    }
+    
     /**
      * Mark a message as read
      * @param messageId Message ID
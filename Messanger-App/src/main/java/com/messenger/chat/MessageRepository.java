@@ -1,8 +1,12 @@
 package com.messenger.chat;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.List;
@@ -25,6 +29,38 @@ public interface MessageRepository extends JpaRepository<Message, Long> {
             "ORDER BY m.timestamp ASC")
     List<Message> findMessagesBetweenUsers(Long user1Id, Long user2Id);
     
+    /**
+     * Find the highest sequence number in the conversation between two users
+     * @param user1Id First user ID
+     * @param user2Id Second user ID
+     * @return Highest sequence number, or null if none was assigned yet
+     */
+    @Query("SELECT MAX(m.sequenceNumber) FROM Message m WHERE " +
+            "(m.senderId = ?1 AND m.recipientId = ?2) OR " +
+            "(m.senderId = ?2 AND m.recipientId = ?1)")
+    Long findMaxSequenceBetweenUsers(Long user1Id, Long user2Id);
+    
+    /**
+     * Find a page of messages sent from one user to another, newest first,
+     * strictly before a (timestamp, id) position.
+     * The redundant {@code timestamp <= before} bound lets the database
+     * range-scan the (sender, recipient, timestamp, id) index.
+     * @param senderId Sender ID
+     * @param recipientId Recipient ID
+     * @param before Timestamp of the position
+     * @param beforeId ID of the position among messages with the same timestamp
+     * @param pageable Page size
+     * @return List of messages
+     */
+    @Query("SELECT m FROM Message m WHERE m.senderId = :senderId AND m.recipientId = :recipientId " +
+            "AND m.timestamp <= :before AND (m.timestamp < :before OR m.id < :beforeId) " +
+            "ORDER BY m.timestamp DESC, m.id DESC")
+    List<Message> findPageBySenderAndRecipient(@Param("senderId") Long senderId,
+                                               @Param("recipientId") Long recipientId,
+                                               @Param("before") LocalDateTime before,
+                                               @Param("beforeId") Long beforeId,
+                                               Pageable pageable);
+    
     /**
      * Find all messages sent to a user
      * @param userId User ID
@@ -40,9 +76,22 @@ public interface MessageRepository extends JpaRepository<Message, Long> {
     List<Message> findByRecipientIdAndReadFalseOrderByTimestampDesc(Long userId);
     
     /**
-     * Find messages that should self-destruct
+     * Delete up to a batch of messages whose self-destruct time has passed,
+     * without loading them
      * @param now Current time
-     * @return List of messages
+     * @param limit Most messages to delete
+     * @return Number of deleted messages
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "DELETE FROM messages WHERE id IN (" +
+            "SELECT id FROM messages WHERE self_destruct_time < :now LIMIT :limit)", nativeQuery = true)
+    int deleteSelfDestructed(@Param("now") LocalDateTime now, @Param("limit") int limit);
+    
+    /**
+     * Find encrypted messages still stored as Base64 text, in ID order
+     * @param afterId Only messages with a greater ID are returned
+     * @return Next batch of messages to migrate
      */
-    List<Message> findBySelfDestructTimeBeforeAndSelfDestructTimeNotNull(LocalDateTime now);
+    List<Message> findTop500ByEncryptedTrueAndCiphertextIsNullAndIdGreaterThanOrderByIdAsc(Long afterId);
 }
@@ -1,7 +1,10 @@
 package com.messenger.chat;
 
+import com.messenger.encryption.CiphertextEnvelope;
 import com.messenger.friendship.FriendshipService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
@@ -14,17 +17,30 @@ import java.util.List;
 @Service
 public class MessageService {
     
+    private static final int SELF_DESTRUCT_BATCH_SIZE = 1000;
+    
     private final MessageRepository messageRepository;
     private final FriendshipService friendshipService;
+    private final ConversationExecutor conversationExecutor;
+    private final SimpMessagingTemplate messagingTemplate;
+    private final boolean binaryCiphertext;
     
     @Autowired
-    public MessageService(MessageRepository messageRepository, FriendshipService friendshipService) {
+    public MessageService(MessageRepository messageRepository, FriendshipService friendshipService,
+                          ConversationExecutor conversationExecutor, SimpMessagingTemplate messagingTemplate,
+                          @Value("${encryption.binary-storage.enabled:true}") boolean binaryCiphertext) {
         this.messageRepository = messageRepository;
         this.friendshipService = friendshipService;
+        this.conversationExecutor = conversationExecutor;
+        this.messagingTemplate = messagingTemplate;
+        this.binaryCiphertext = binaryCiphertext;
     }
     
     /**
-     * Save a new message, only if users are friends
+     * Save a new message and deliver it to the recipient, only if users are friends.
+     * The write, the conversation sequence number and the delivery all run on
+     * the conversation's single writer, so concurrent sends from REST and
+     * STOMP are persisted and delivered in one order.
      * @param message Message object
      * @return Saved message
      * @throws IllegalArgumentException if users aren't friends
@@ -34,7 +50,48 @@ public class MessageService {
         if (!canSendMessage(message.getSenderId(), message.getRecipientId())) {
             throw new IllegalArgumentException("Cannot send message: users are not friends");
         }
-        return messageRepository.save(message);
+        if (binaryCiphertext) {
+            toBinaryCiphertext(message);
+        }
+        
+        Long senderId = message.getSenderId();
+        Long recipientId = message.getRecipientId();
+        return conversationExecutor.execute(ConversationExecutor.directKey(senderId, recipientId), state -> {
+            long sequence = state.getLastSequence(() -> {
+                Long last = messageRepository.findMaxSequenceBetweenUsers(senderId, recipientId);
+                return last != null ? last : 0L;
+            }) + 1;
+            message.setSequenceNumber(sequence);
+            Message savedMessage = messageRepository.save(message);
+            state.setLastSequence(sequence);
+            
+            // Send the message to the recipient's private queue
+            messagingTemplate.convertAndSendToUser(
+                    String.valueOf(recipientId),
+                    "/queue/messages",
+                    savedMessage
+            );
+            return savedMessage;
+        });
+    }
+    
+    /**
+     * Move an encrypted message's Base64 content into the binary ciphertext column.
+     * Content that is not valid Base64 ciphertext is left as text.
+     * @param message Message to convert
+     * @return true if the message was converted
+     */
+    boolean toBinaryCiphertext(Message message) {
+        if (!message.isEncrypted() || message.getCiphertext() != null || message.getContent() == null) {
+            return false;
+        }
+        try {
+            message.setCiphertext(CiphertextEnvelope.fromBase64(message.getContent()));
+            message.setContent(null);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
     }
     
     /**
@@ -100,15 +157,14 @@ public class MessageService {
     
     /**
      * Delete messages that should self-destruct
-     * Runs every minute
+     * Runs every minute, deleting in batches so a large backlog neither
+     * holds one long transaction nor is loaded into memory
      */
     @Scheduled(fixedRate = 60000)
     public void processSelfDestructMessages() {
-        List<Message> expiredMessages = 
-            messageRepository.findBySelfDestructTimeBeforeAndSelfDestructTimeNotNull(LocalDateTime.now());
-        
-        for (Message message : expiredMessages) {
-            messageRepository.delete(message);
+        LocalDateTime now = LocalDateTime.now();
+        while (messageRepository.deleteSelfDestructed(now, SELF_DESTRUCT_BATCH_SIZE) == SELF_DESTRUCT_BATCH_SIZE) {
+            // keep going until a short batch shows the backlog is cleared
         }
     }
 }
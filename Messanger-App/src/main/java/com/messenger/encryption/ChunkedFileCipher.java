@@ -0,0 +1,328 @@
+package com.messenger.encryption;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Streaming, chunked AES-256-GCM format for stored files.
+ *
+ * <pre>
+ *   header   4 bytes magic "MSGC", 1 byte version, 4 bytes chunk size,
+ *            8 bytes random nonce prefix
+ *   chunks   ciphertext || 16 byte tag, one per chunk of plaintext
+ * </pre>
+ *
+ * Every chunk except the last holds exactly {@code chunkSize} bytes of
+ * plaintext; the last one holds fewer (possibly none). Each chunk's nonce is
+ * the file's nonce prefix followed by the 4 byte chunk index, and its
+ * associated data is the header plus a final-chunk flag, so chunks cannot
+ * be reordered, swapped between files, or truncated at a chunk boundary
+ * without failing authentication.
+ *
+ * Memory use is bounded by one chunk regardless of file size, chunk N can be
+ * decrypted without reading chunks before it, and arbitrary binary content
+ * round-trips unchanged.
+ *
+ * Instances hold a {@link Cipher} and are not thread-safe.
+ */
+public final class ChunkedFileCipher {
+    
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int TAG_LENGTH = 16;
+    public static final int HEADER_LENGTH = 17;
+    
+    private static final byte[] MAGIC = {'M', 'S', 'G', 'C'};
+    private static final byte VERSION = 1;
+    private static final int NONCE_PREFIX_LENGTH = 8;
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    private final SecretKey key;
+    private final byte[] header;
+    private final int chunkSize;
+    private final Cipher cipher;
+    private final byte[] nonce = new byte[12];
+    
+    private ChunkedFileCipher(SecretKey key, byte[] header) throws GeneralSecurityException {
+        this.key = key;
+        this.header = header;
+        this.chunkSize = ByteBuffer.wrap(header, 5, 4).getInt();
+        this.cipher = Cipher.getInstance(ALGORITHM);
+        System.arraycopy(header, 9, nonce, 0, NONCE_PREFIX_LENGTH);
+    }
+    
+    /**
+     * Start a new encrypted file with a fresh nonce prefix
+     * @param key AES key
+     * @param chunkSize Plaintext bytes per chunk
+     * @return Cipher for the new file
+     */
+    public static ChunkedFileCipher create(SecretKey key, int chunkSize) throws GeneralSecurityException {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[4] = VERSION;
+        ByteBuffer.wrap(header, 5, 4).putInt(chunkSize);
+        byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(prefix);
+        System.arraycopy(prefix, 0, header, 9, NONCE_PREFIX_LENGTH);
+        return new ChunkedFileCipher(key, header);
+    }
+    
+    /**
+     * Open an existing encrypted file from its header
+     * @param header The first {@link #HEADER_LENGTH} bytes of the file
+     * @param key AES key
+     * @return Cipher for the file
+     */
+    public static ChunkedFileCipher fromHeader(byte[] header, SecretKey key) throws GeneralSecurityException {
+        if (!isChunkedHeader(header)) {
+            throw new IllegalArgumentException("Not a chunked encrypted file");
+        }
+        int chunkSize = ByteBuffer.wrap(header, 5, 4).getInt();
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        return new ChunkedFileCipher(key, Arrays.copyOf(header, HEADER_LENGTH));
+    }
+    
+    /**
+     * Check whether bytes start with a chunked file header
+     * @param data Leading bytes of a file
+     * @return true if the data carries the magic and a supported version
+     */
+    public static boolean isChunkedHeader(byte[] data) {
+        return data != null && data.length >= HEADER_LENGTH
+                && data[0] == MAGIC[0] && data[1] == MAGIC[1] && data[2] == MAGIC[2] && data[3] == MAGIC[3]
+                && data[4] == VERSION;
+    }
+    
+    /**
+     * Build an AES key from its Base64 form
+     * @param keyBase64 Base64 encoded AES key
+     * @return Secret key
+     */
+    public static SecretKey keyFromBase64(String keyBase64) {
+        return new SecretKeySpec(Base64.getDecoder().decode(keyBase64), "AES");
+    }
+    
+    /**
+     * Size of the encrypted form of a plaintext
+     * @param plainLength Plaintext length
+     * @param chunkSize Plaintext bytes per chunk
+     * @return Encrypted length including header and tags
+     */
+    public static long encryptedLength(long plainLength, int chunkSize) {
+        return HEADER_LENGTH + plainLength + (plainLength / chunkSize + 1) * TAG_LENGTH;
+    }
+    
+    public byte[] getHeader() {
+        return header.clone();
+    }
+    
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    /**
+     * Byte offset of a chunk within the encrypted file
+     * @param index Chunk index
+     * @return Offset from the start of the file
+     */
+    public long chunkOffset(long index) {
+        return HEADER_LENGTH + index * (long) (chunkSize + TAG_LENGTH);
+    }
+    
+    /**
+     * Encrypt one chunk
+     * @param index Chunk index
+     * @param last Whether this is the final chunk
+     * @param in Plaintext buffer
+     * @param length Plaintext length; must equal the chunk size unless last
+     * @param out Output buffer with room for length + {@link #TAG_LENGTH} bytes
+     * @return Number of bytes written to out
+     */
+    public int encryptChunk(long index, boolean last, byte[] in, int length, byte[] out) throws GeneralSecurityException {
+        if (last ? length >= chunkSize : length != chunkSize) {
+            throw new IllegalArgumentException("Invalid plaintext length " + length + " for chunk " + index);
+        }
+        initChunk(Cipher.ENCRYPT_MODE, index, last);
+        return cipher.doFinal(in, 0, length, out, 0);
+    }
+    
+    /**
+     * Decrypt and authenticate one chunk
+     * @param index Chunk index
+     * @param last Whether this is the final chunk
+     * @param in Chunk bytes (ciphertext followed by tag)
+     * @param length Chunk length
+     * @param out Output buffer with room for length - {@link #TAG_LENGTH} bytes
+     * @return Number of plaintext bytes written to out
+     */
+    public int decryptChunk(long index, boolean last, byte[] in, int length, byte[] out) throws GeneralSecurityException {
+        initChunk(Cipher.DECRYPT_MODE, index, last);
+        return cipher.doFinal(in, 0, length, out, 0);
+    }
+    
+    private void initChunk(int mode, long index, boolean last) throws GeneralSecurityException {
+        if (index < 0 || index > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Chunk index out of range: " + index);
+        }
+        ByteBuffer.wrap(nonce, NONCE_PREFIX_LENGTH, 4).putInt((int) index);
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(header);
+        cipher.updateAAD(new byte[]{(byte) (last ? 1 : 0)});
+    }
+    
+    /**
+     * Encrypt a stream into the chunked format using the default chunk size
+     * @param in Plaintext source
+     * @param out Destination for the encrypted file
+     * @param key AES key
+     * @return Number of plaintext bytes encrypted
+     */
+    public static long encrypt(InputStream in, OutputStream out, SecretKey key) throws IOException, GeneralSecurityException {
+        ChunkedFileCipher chunkedCipher = create(key, DEFAULT_CHUNK_SIZE);
+        out.write(chunkedCipher.header);
+        
+        byte[] plain = new byte[chunkedCipher.chunkSize];
+        byte[] sealed = new byte[chunkedCipher.chunkSize + TAG_LENGTH];
+        long total = 0;
+        for (long index = 0; ; index++) {
+            int read = in.readNBytes(plain, 0, plain.length);
+            boolean last = read < plain.length;
+            int written = chunkedCipher.encryptChunk(index, last, plain, read, sealed);
+            out.write(sealed, 0, written);
+            total += read;
+            if (last) {
+                return total;
+            }
+        }
+    }
+    
+    /**
+     * Wrap an encrypted file stream in a stream of its plaintext.
+     * Chunks are decrypted and authenticated one at a time as they are read.
+     * @param in Encrypted file, positioned at its header
+     * @param key AES key
+     * @return Plaintext stream
+     */
+    public static InputStream decryptingStream(InputStream in, SecretKey key) throws IOException, GeneralSecurityException {
+        byte[] header = in.readNBytes(HEADER_LENGTH);
+        if (!isChunkedHeader(header)) {
+            throw new IOException("Not a chunked encrypted file");
+        }
+        return new DecryptingInputStream(in, fromHeader(header, key), 0);
+    }
+    
+    /**
+     * Wrap an encrypted stream positioned at a chunk boundary in a plaintext stream
+     * @param in Encrypted file, positioned at {@link #chunkOffset(long)} of firstChunk
+     * @param firstChunk Index of the chunk the stream is positioned at
+     * @return Plaintext stream starting at the first byte of that chunk
+     */
+    public InputStream decryptingStream(InputStream in, long firstChunk) {
+        return new DecryptingInputStream(in, this, firstChunk);
+    }
+    
+    /**
+     * Plaintext view over a chunked encrypted stream
+     */
+    private static class DecryptingInputStream extends InputStream {
+        
+        private final InputStream in;
+        private final ChunkedFileCipher chunkedCipher;
+        private final byte[] sealed;
+        private final byte[] plain;
+        private long index;
+        private int position;
+        private int limit;
+        private boolean finished;
+        
+        DecryptingInputStream(InputStream in, ChunkedFileCipher chunkedCipher, long firstChunk) {
+            this.in = in;
+            this.chunkedCipher = chunkedCipher;
+            this.sealed = new byte[chunkedCipher.chunkSize + TAG_LENGTH];
+            this.plain = new byte[chunkedCipher.chunkSize];
+            this.index = firstChunk;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return plain[position++] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, limit - position);
+            System.arraycopy(plain, position, b, off, count);
+            position += count;
+            return count;
+        }
+        
+        @Override
+        public int available() {
+            return limit - position;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+        
+        /**
+         * Make sure there is buffered plaintext, decrypting the next chunk if needed
+         * @return false at the end of the plaintext
+         */
+        private boolean fill() throws IOException {
+            while (position == limit) {
+                if (finished) {
+                    return false;
+                }
+                
+                int read = in.readNBytes(sealed, 0, sealed.length);
+                if (read < TAG_LENGTH) {
+                    throw new EOFException("Encrypted file is truncated at chunk " + index);
+                }
+                // Only the final chunk is shorter than a full chunk
+                boolean last = read < sealed.length;
+                try {
+                    limit = chunkedCipher.decryptChunk(index, last, sealed, read, plain);
+                } catch (AEADBadTagException e) {
+                    throw new IOException("Authentication failed for chunk " + index, e);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Failed to decrypt chunk " + index, e);
+                }
+                position = 0;
+                index++;
+                finished = last;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.messenger.encryption;
+
+import java.util.Base64;
+
+/**
+ * Binary storage layout for AES-GCM ciphertext.
+ *
+ * <pre>
+ *   offset  0  1 byte   format version ({@link #VERSION})
+ *   offset  1  12 bytes IV
+ *   offset 13  16 bytes GCM authentication tag
+ *   offset 29  ...      ciphertext
+ * </pre>
+ *
+ * Clients and {@link EncryptionService#encrypt(String, String)} exchange
+ * ciphertext as Base64 of {@code IV || ciphertext || tag}; this class
+ * converts between that wire form and the envelope so Base64 is only
+ * produced at the JSON edge.
+ */
+public final class CiphertextEnvelope {
+    
+    public static final byte VERSION = 1;
+    public static final int IV_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+    public static final int HEADER_LENGTH = 1 + IV_LENGTH + TAG_LENGTH;
+    
+    private CiphertextEnvelope() {
+    }
+    
+    /**
+     * Check whether data is laid out as an envelope
+     * @param data Stored bytes
+     * @return true if the data starts with a known envelope header
+     */
+    public static boolean isEnvelope(byte[] data) {
+        return data != null && data.length >= HEADER_LENGTH && data[0] == VERSION;
+    }
+    
+    /**
+     * Build an envelope from GCM output laid out as {@code IV || ciphertext || tag}
+     * @param gcmOutput IV followed by the cipher output
+     * @return Envelope bytes
+     */
+    public static byte[] fromGcmOutput(byte[] gcmOutput) {
+        if (gcmOutput.length < IV_LENGTH + TAG_LENGTH) {
+            throw new IllegalArgumentException("Ciphertext is too short to contain an IV and tag");
+        }
+        
+        int cipherTextLength = gcmOutput.length - IV_LENGTH - TAG_LENGTH;
+        byte[] envelope = new byte[HEADER_LENGTH + cipherTextLength];
+        envelope[0] = VERSION;
+        System.arraycopy(gcmOutput, 0, envelope, 1, IV_LENGTH);
+        System.arraycopy(gcmOutput, IV_LENGTH + cipherTextLength, envelope, 1 + IV_LENGTH, TAG_LENGTH);
+        System.arraycopy(gcmOutput, IV_LENGTH, envelope, HEADER_LENGTH, cipherTextLength);
+        return envelope;
+    }
+    
+    /**
+     * Convert an envelope back to {@code IV || ciphertext || tag}
+     * @param envelope Envelope bytes
+     * @return GCM output with the IV prepended
+     */
+    public static byte[] toGcmOutput(byte[] envelope) {
+        if (!isEnvelope(envelope)) {
+            throw new IllegalArgumentException("Data is not a ciphertext envelope");
+        }
+        
+        int cipherTextLength = envelope.length - HEADER_LENGTH;
+        byte[] gcmOutput = new byte[IV_LENGTH + cipherTextLength + TAG_LENGTH];
+        System.arraycopy(envelope, 1, gcmOutput, 0, IV_LENGTH);
+        System.arraycopy(envelope, HEADER_LENGTH, gcmOutput, IV_LENGTH, cipherTextLength);
+        System.arraycopy(envelope, 1 + IV_LENGTH, gcmOutput, IV_LENGTH + cipherTextLength, TAG_LENGTH);
+        return gcmOutput;
+    }
+    
+    /**
+     * Decode Base64 wire ciphertext into an envelope
+     * @param base64 Base64 of {@code IV || ciphertext || tag}
+     * @return Envelope bytes
+     */
+    public static byte[] fromBase64(String base64) {
+        return fromGcmOutput(Base64.getDecoder().decode(base64));
+    }
+    
+    /**
+     * Encode an envelope as Base64 wire ciphertext
+     * @param envelope Envelope bytes
+     * @return Base64 of {@code IV || ciphertext || tag}
+     */
+    public static String toBase64(byte[] envelope) {
+        return Base64.getEncoder().encodeToString(toGcmOutput(envelope));
+    }
+}
@@ -1,13 +1,12 @@
 package com.messenger.encryption;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import javax.crypto.KeyAgreement;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 import java.security.*;
 import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -17,30 +16,51 @@ import java.util.UUID;
 @Service
 public class DoubleRatchetService {
 
-    private final Map<String, KeyPair> dhRatchets = new HashMap<>();
-    private final Map<String, byte[]> rootKeys = new HashMap<>();
-    private final Map<String, byte[]> chainKeys = new HashMap<>();
+    private final RatchetSessionStore sessionStore;
+    private final KeyPairPool keyPairPool;
+    private final int maxSkip;
+    private final int maxSkippedKeys;
+    
+    @Autowired
+    public DoubleRatchetService(RatchetSessionStore sessionStore,
+                                KeyPairPool keyPairPool,
+                                @Value("${ratchet.session.max-skip:1000}") int maxSkip,
+                                @Value("${ratchet.session.max-skipped-keys:200}") int maxSkippedKeys) {
+        this.sessionStore = sessionStore;
+        this.keyPairPool = keyPairPool;
+        this.maxSkip = maxSkip;
+        this.maxSkippedKeys = maxSkippedKeys;
+    }
     
     /**
-     * Initialize a Double Ratchet session
+     * Initialize a Double Ratchet session using ECDH on P-256
      * @return Session ID for referencing this ratchet
      */
     public String initSession() {
-        try {
-            String sessionId = UUID.randomUUID().toString();
-            
-            // Generate initial DH key pair
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
-            keyGen.initialize(256);
-            KeyPair dhKeyPair = keyGen.generateKeyPair();
-            
-            // Store key pair in session
-            dhRatchets.put(sessionId, dhKeyPair);
-            
-            return sessionId;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Failed to initialize Double Ratchet session", e);
-        }
+        return initSession(RatchetSession.Mode.EC_P256);
+    }
+    
+    /**
+     * Initialize a Double Ratchet session
+     * @param mode Key agreement and derivation for the session
+     * @return Session ID for referencing this ratchet
+     */
+    public String initSession(RatchetSession.Mode mode) {
+        String sessionId = UUID.randomUUID().toString();
+        
+        // Take a pre-generated initial DH key pair and store it in a new session
+        sessionStore.add(new RatchetSession(sessionId, mode, keyPairPool.take(mode.getKeyAlgorithm())));
+        
+        return sessionId;
+    }
+    
+    /**
+     * Get the mode a session was started with
+     * @param sessionId Session ID
+     * @return The session's mode
+     */
+    public RatchetSession.Mode getMode(String sessionId) {
+        return getSession(sessionId).getMode();
     }
     
     /**
@@ -49,12 +69,8 @@ public class DoubleRatchetService {
      * @return Base64 encoded public key
      */
     public String getPublicKey(String sessionId) {
-        KeyPair keyPair = dhRatchets.get(sessionId);
-        if (keyPair == null) {
-            throw new IllegalArgumentException("Invalid session ID");
-        }
-        
-        return Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+        RatchetSession session = getSession(sessionId);
+        return Base64.getEncoder().encodeToString(session.getPublicKey().getEncoded());
     }
     
     /**
@@ -65,35 +81,19 @@ public class DoubleRatchetService {
      */
     public boolean processPublicKey(String sessionId, String encodedPublicKey) {
         try {
-            KeyPair keyPair = dhRatchets.get(sessionId);
-            if (keyPair == null) {
-                throw new IllegalArgumentException("Invalid session ID");
-            }
+            RatchetSession session = getSession(sessionId);
             
-            // Decode received public key
+            // Decode received public key with the session's algorithm
             byte[] publicKeyBytes = Base64.getDecoder().decode(encodedPublicKey);
-            KeyFactory kf = KeyFactory.getInstance("EC");
-            PublicKey publicKey = kf.generatePublic(new java.security.spec.X509EncodedKeySpec(publicKeyBytes));
-            
-            // Generate shared secret with DH
-            KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
-            keyAgreement.init(keyPair.getPrivate());
-            keyAgreement.doPhase(publicKey, true);
-            byte[] sharedSecret = keyAgreement.generateSecret();
-            
-            // Store root key
-            rootKeys.put(sessionId, sharedSecret);
+            PublicKey publicKey = session.getMode().decodePublicKey(publicKeyBytes);
             
-            // Generate initial chain key
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] chainKey = digest.digest(sharedSecret);
-            chainKeys.put(sessionId, chainKey);
-            
-            // Generate new DH key pair for next ratchet step
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
-            keyGen.initialize(256);
-            KeyPair newDhKeyPair = keyGen.generateKeyPair();
-            dhRatchets.put(sessionId, newDhKeyPair);
+            // Take the next DH key pair before taking the session's lock, then
+            // derive root and chain keys and switch key pairs in one step
+            KeyPair nextKeyPair = keyPairPool.take(session.getMode().getKeyAlgorithm());
+            sessionStore.update(sessionId, live -> {
+                live.establish(publicKey, nextKeyPair);
+                return null;
+            });
             
             return true;
         } catch (Exception e) {
@@ -108,33 +108,46 @@ public class DoubleRatchetService {
      */
     public SecretKey getMessageKey(String sessionId) {
         try {
-            byte[] chainKey = chainKeys.get(sessionId);
-            if (chainKey == null) {
-                throw new IllegalArgumentException("No chain key found for session");
-            }
-            
-            // Generate message key from chain key
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] messageKeyBytes = digest.digest(append(chainKey, new byte[]{1}));
-            
-            // Update chain key (ratchet forward)
-            chainKeys.put(sessionId, digest.digest(append(chainKey, new byte[]{2})));
-            
-            // Create AES key from message key bytes
-            return new SecretKeySpec(messageKeyBytes, 0, 32, "AES");
-            
-        } catch (NoSuchAlgorithmException e) {
+            return sessionStore.update(sessionId, RatchetSession::nextMessageKey);
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException("Failed to generate message key", e);
         }
     }
     
     /**
-     * Helper method to append two byte arrays
+     * Generate several message keys at once, advancing the chain atomically
+     * @param sessionId Session ID
+     * @param count Number of keys
+     * @return The keys with their indices, in order
      */
-    private byte[] append(byte[] a, byte[] b) {
-        byte[] result = new byte[a.length + b.length];
-        System.arraycopy(a, 0, result, 0, a.length);
-        System.arraycopy(b, 0, result, a.length, b.length);
-        return result;
+    public List<RatchetSession.IndexedMessageKey> getMessageKeys(String sessionId, int count) {
+        try {
+            return sessionStore.update(sessionId, session -> session.nextMessageKeys(count));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to generate message keys", e);
+        }
+    }
+    
+    /**
+     * Get the message key at an index, for messages that arrive out of order
+     * @param sessionId Session ID
+     * @param index Message index in the current chain
+     * @return Secret key for the message
+     */
+    public SecretKey getMessageKey(String sessionId, int index) {
+        try {
+            return sessionStore.update(sessionId, session -> session.messageKey(index, maxSkip,
+                    sessionStore.skippedKeyAllowance(session, maxSkippedKeys)));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to generate message key", e);
+        }
+    }
+    
+    private RatchetSession getSession(String sessionId) {
+        RatchetSession session = sessionStore.get(sessionId);
+        if (session == null) {
+            throw new IllegalArgumentException("Invalid session ID");
+        }
+        return session;
     }
 }
@@ -6,8 +6,10 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.crypto.SecretKey;
 import java.security.KeyPair;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -17,13 +19,18 @@ import java.util.Map;
 @RequestMapping("/api/encryption")
 public class EncryptionController {
 
+    private static final int MAX_BATCH_SIZE = 100;
+
     private final EncryptionService encryptionService;
     private final DoubleRatchetService doubleRatchetService;
+    private final KeyPairPool keyPairPool;
 
     @Autowired
-    public EncryptionController(EncryptionService encryptionService, DoubleRatchetService doubleRatchetService) {
+    public EncryptionController(EncryptionService encryptionService, DoubleRatchetService doubleRatchetService,
+                                KeyPairPool keyPairPool) {
         this.encryptionService = encryptionService;
         this.doubleRatchetService = doubleRatchetService;
+        this.keyPairPool = keyPairPool;
     }
 
     /**
@@ -53,7 +60,7 @@ public class EncryptionController {
     public Map<String, String> generateAsymmetricKeyPair() {
         Map<String, String> response = new HashMap<>();
         try {
-            KeyPair keyPair = encryptionService.generateKeyPair();
+            KeyPair keyPair = keyPairPool.take(KeyPairPool.Algorithm.RSA_2048);
             response.put("publicKey", encryptionService.keyToString(keyPair.getPublic()));
             response.put("privateKey", encryptionService.keyToString(keyPair.getPrivate()));
             response.put("algorithm", "RSA-2048");
@@ -82,23 +89,66 @@ public class EncryptionController {
     /**
      * Get a message key for encryption/decryption
      *
-     * @param request The session ID
-     * @return Base64 encoded message key
+     * @param request The session ID and, for out-of-order messages, the message index
+     * @return Base64 encoded message key and its index
      */
     @PostMapping("/message-key")
     public ResponseEntity<Map<String, String>> getMessageKey(@RequestBody MessageKeyRequest request) {
-        SecretKey messageKey = doubleRatchetService.getMessageKey(request.getSessionId());
+        int index;
+        SecretKey messageKey;
+        try {
+            if (request.getIndex() != null) {
+                index = request.getIndex();
+                messageKey = doubleRatchetService.getMessageKey(request.getSessionId(), index);
+            } else {
+                RatchetSession.IndexedMessageKey next = doubleRatchetService.getMessageKeys(request.getSessionId(), 1).get(0);
+                index = next.getIndex();
+                messageKey = next.getKey();
+            }
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
         String encodedKey = Base64.getEncoder().encodeToString(messageKey.getEncoded());
 
         Map<String, String> response = new HashMap<>();
         response.put("key", encodedKey);
+        response.put("index", String.valueOf(index));
 
         return ResponseEntity.ok(response);
     }
 
+    /**
+     * Get several message keys at once, for a burst of messages
+     *
+     * @param request The session ID and number of keys
+     * @return Base64 encoded message keys with their indices, in order
+     */
+    @PostMapping("/message-keys")
+    public ResponseEntity<?> getMessageKeys(@RequestBody MessageKeyRequest request) {
+        int count = request.getCount() != null ? request.getCount() : 1;
+        if (count < 1 || count > MAX_BATCH_SIZE) {
+            return ResponseEntity.badRequest().body(Map.of("error", "count must be between 1 and " + MAX_BATCH_SIZE));
+        }
+
+        List<Map<String, Object>> keys = new ArrayList<>(count);
+        try {
+            for (RatchetSession.IndexedMessageKey messageKey : doubleRatchetService.getMessageKeys(request.getSessionId(), count)) {
+                keys.add(Map.of(
+                        "index", messageKey.getIndex(),
+                        "key", Base64.getEncoder().encodeToString(messageKey.getKey().getEncoded())));
+            }
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+
+        return ResponseEntity.ok(Map.of("sessionId", request.getSessionId(), "keys", keys));
+    }
+
     // Simple request class for message key generation
     static class MessageKeyRequest {
         private String sessionId;
+        private Integer index;
+        private Integer count;
 
         public String getSessionId() {
             return sessionId;
@@ -107,5 +157,21 @@ public class EncryptionController {
         public void setSessionId(String sessionId) {
             this.sessionId = sessionId;
         }
+
+        public Integer getIndex() {
+            return index;
+        }
+
+        public void setIndex(Integer index) {
+            this.index = index;
+        }
+
+        public Integer getCount() {
+            return count;
+        }
+
+        public void setCount(Integer count) {
+            this.count = count;
+        }
     }
 }
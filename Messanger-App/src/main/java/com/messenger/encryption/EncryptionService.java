@@ -6,10 +6,16 @@ import org.springframework.stereotype.Service;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Encryption Service implementing AES-256 encryption for end-to-end message security
@@ -21,6 +27,24 @@ public class EncryptionService {
     private static final int GCM_IV_LENGTH = 12;
     private static final int GCM_TAG_LENGTH = 16;
     private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final int KEY_CACHE_SIZE = 1024;
+
+    // SecureRandom is thread-safe, and seeding a new one per call is the expensive part
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // A Cipher is not thread-safe but can be re-initialised for every message, so each thread keeps one
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM is not available", e);
+        }
+    });
+    private static final ThreadLocal<byte[]> IV = ThreadLocal.withInitial(() -> new byte[GCM_IV_LENGTH]);
+
+    // Read on every message without locking; trimmed by one thread at a time once it grows past its size
+    private static final Map<String, SecretKey> KEY_CACHE = new ConcurrentHashMap<>();
+    private static final ReentrantLock KEY_CACHE_TRIM = new ReentrantLock();
 
     static {
         Security.addProvider(new BouncyCastleProvider());
@@ -38,6 +62,44 @@ public class EncryptionService {
         return Base64.getEncoder().encodeToString(key.getEncoded());
     }
 
+    /**
+     * Decode a Base64 AES key. Keys are cached, so a
+     * conversation's key is decoded once rather than on every message.
+     * @param keyBase64 Base64 encoded AES key
+     * @return The key
+     */
+    public SecretKey key(String keyBase64) {
+        SecretKey key = KEY_CACHE.get(keyBase64);
+        if (key == null) {
+            key = new SecretKeySpec(Base64.getDecoder().decode(keyBase64), "AES");
+            KEY_CACHE.put(keyBase64, key);
+            if (KEY_CACHE.size() > KEY_CACHE_SIZE) {
+                trimKeyCache();
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Drop cached keys until the cache is back under 90% of its size. A key
+     * is only a Base64 decode away, so which ones go does not matter much;
+     * one thread trims while the others carry on.
+     */
+    private static void trimKeyCache() {
+        if (!KEY_CACHE_TRIM.tryLock()) {
+            return;
+        }
+        try {
+            Iterator<String> iterator = KEY_CACHE.keySet().iterator();
+            while (KEY_CACHE.size() > KEY_CACHE_SIZE * 9 / 10 && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        } finally {
+            KEY_CACHE_TRIM.unlock();
+        }
+    }
+
     /**
      * Encrypt data using AES-256 in GCM mode
      * @param plaintext The data to encrypt
@@ -46,28 +108,7 @@ public class EncryptionService {
      * @throws Exception if encryption fails
      */
     public String encrypt(String plaintext, String keyBase64) throws Exception {
-        // Decode the Base64 encoded key
-        byte[] keyBytes = Base64.getDecoder().decode(keyBase64);
-        SecretKey key = new SecretKeySpec(keyBytes, "AES");
-        
-        // Generate a random IV
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(iv);
-        
-        // Initialize cipher for encryption
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
-        
-        // Encrypt
-        byte[] cipherText = cipher.doFinal(plaintext.getBytes());
-        
-        // Prepend IV to ciphertext and encode in Base64
-        byte[] encryptedData = new byte[iv.length + cipherText.length];
-        System.arraycopy(iv, 0, encryptedData, 0, iv.length);
-        System.arraycopy(cipherText, 0, encryptedData, iv.length, cipherText.length);
-        
-        return Base64.getEncoder().encodeToString(encryptedData);
+        return Base64.getEncoder().encodeToString(encrypt(plaintext.getBytes(), key(keyBase64)));
     }
 
     /**
@@ -78,25 +119,142 @@ public class EncryptionService {
      * @throws Exception if decryption fails
      */
     public String decrypt(String encryptedBase64, String keyBase64) throws Exception {
-        // Decode the encrypted data and key from Base64
         byte[] encryptedData = Base64.getDecoder().decode(encryptedBase64);
-        byte[] keyBytes = Base64.getDecoder().decode(keyBase64);
-        
-        // Extract IV from the encrypted data
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        byte[] cipherText = new byte[encryptedData.length - GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, 0, iv, 0, iv.length);
-        System.arraycopy(encryptedData, iv.length, cipherText, 0, cipherText.length);
-        
-        // Initialize cipher for decryption
-        SecretKey key = new SecretKeySpec(keyBytes, "AES");
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        return new String(decrypt(encryptedData, 0, encryptedData.length, key(keyBase64)));
+    }
+
+    /**
+     * Encrypt bytes using AES-256 in GCM mode
+     * @param plaintext The data to encrypt
+     * @param key AES key
+     * @return {@code IV || ciphertext || tag}, written into one array without intermediate copies
+     * @throws GeneralSecurityException if encryption fails
+     */
+    public byte[] encrypt(byte[] plaintext, SecretKey key) throws GeneralSecurityException {
+        byte[] output = new byte[GCM_IV_LENGTH + plaintext.length + GCM_TAG_LENGTH];
+        System.arraycopy(nextIv(), 0, output, 0, GCM_IV_LENGTH);
+
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, output, 0, GCM_IV_LENGTH));
+        cipher.doFinal(plaintext, 0, plaintext.length, output, GCM_IV_LENGTH);
+        return output;
+    }
+
+    /**
+     * Decrypt bytes laid out as {@code IV || ciphertext || tag}
+     * @param data Array holding the encrypted data
+     * @param offset Start of the encrypted data
+     * @param length Length of the encrypted data
+     * @param key AES key
+     * @return Decrypted data
+     * @throws GeneralSecurityException if decryption or authentication fails
+     */
+    public byte[] decrypt(byte[] data, int offset, int length, SecretKey key) throws GeneralSecurityException {
+        if (length < GCM_IV_LENGTH + GCM_TAG_LENGTH) {
+            throw new IllegalArgumentException("Ciphertext is too short to contain an IV and tag");
+        }
+
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, data, offset, GCM_IV_LENGTH));
+        return cipher.doFinal(data, offset + GCM_IV_LENGTH, length - GCM_IV_LENGTH);
+    }
+
+    /**
+     * Encrypt the remaining bytes of a buffer into another as {@code IV || ciphertext || tag}
+     * @param plaintext Data to encrypt; consumed
+     * @param output Buffer to write to, with room for the plaintext plus 28 bytes
+     * @param key AES key
+     * @return Number of bytes written
+     * @throws GeneralSecurityException if encryption fails
+     */
+    public int encrypt(ByteBuffer plaintext, ByteBuffer output, SecretKey key) throws GeneralSecurityException {
+        if (output.remaining() < GCM_IV_LENGTH + plaintext.remaining() + GCM_TAG_LENGTH) {
+            throw new ShortBufferException("Output buffer is too small");
+        }
+
+        byte[] iv = nextIv();
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+        output.put(iv);
+        return GCM_IV_LENGTH + cipher.doFinal(plaintext, output);
+    }
+
+    /**
+     * Decrypt the remaining bytes of a buffer, laid out as {@code IV || ciphertext || tag}, into another
+     * @param encrypted Encrypted data; consumed
+     * @param output Buffer to write the plaintext to
+     * @param key AES key
+     * @return Number of bytes written
+     * @throws GeneralSecurityException if decryption or authentication fails
+     */
+    public int decrypt(ByteBuffer encrypted, ByteBuffer output, SecretKey key) throws GeneralSecurityException {
+        if (encrypted.remaining() < GCM_IV_LENGTH + GCM_TAG_LENGTH) {
+            throw new IllegalArgumentException("Ciphertext is too short to contain an IV and tag");
+        }
+
+        byte[] iv = IV.get();
+        encrypted.get(iv);
+        Cipher cipher = CIPHER.get();
         cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
-        
-        // Decrypt
-        byte[] plainText = cipher.doFinal(cipherText);
-        
-        return new String(plainText);
+        return cipher.doFinal(encrypted, output);
+    }
+
+    /**
+     * Encrypt binary data into a {@link CiphertextEnvelope} for binary storage
+     * @param plaintext The data to encrypt
+     * @param keyBase64 Base64 encoded AES key
+     * @return Envelope with version, IV and tag header followed by the ciphertext
+     * @throws Exception if encryption fails
+     */
+    public byte[] encryptToEnvelope(byte[] plaintext, String keyBase64) throws Exception {
+        byte[] envelope = new byte[CiphertextEnvelope.HEADER_LENGTH + plaintext.length];
+        envelope[0] = CiphertextEnvelope.VERSION;
+        System.arraycopy(nextIv(), 0, envelope, 1, GCM_IV_LENGTH);
+
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key(keyBase64), new GCMParameterSpec(GCM_TAG_LENGTH * 8, envelope, 1, GCM_IV_LENGTH));
+
+        // Ciphertext goes straight into place; only the last partial block and the tag come back
+        // from doFinal, and the tag moves into the header
+        int written = cipher.update(plaintext, 0, plaintext.length, envelope, CiphertextEnvelope.HEADER_LENGTH);
+        byte[] tail = cipher.doFinal();
+        int cipherTextTail = tail.length - GCM_TAG_LENGTH;
+        System.arraycopy(tail, 0, envelope, CiphertextEnvelope.HEADER_LENGTH + written, cipherTextTail);
+        System.arraycopy(tail, cipherTextTail, envelope, 1 + GCM_IV_LENGTH, GCM_TAG_LENGTH);
+        return envelope;
+    }
+
+    /**
+     * Decrypt a {@link CiphertextEnvelope}
+     * @param envelope Envelope bytes
+     * @param keyBase64 Base64 encoded AES key
+     * @return Decrypted data
+     * @throws Exception if decryption or authentication fails
+     */
+    public byte[] decryptEnvelope(byte[] envelope, String keyBase64) throws Exception {
+        if (!CiphertextEnvelope.isEnvelope(envelope)) {
+            throw new IllegalArgumentException("Data is not a ciphertext envelope");
+        }
+
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key(keyBase64),
+                new GCMParameterSpec(GCM_TAG_LENGTH * 8, envelope, 1, GCM_IV_LENGTH));
+
+        // Feed the ciphertext, then the tag from the header, into one output array
+        int cipherTextLength = envelope.length - CiphertextEnvelope.HEADER_LENGTH;
+        byte[] plainText = new byte[cipherTextLength];
+        int written = cipher.update(envelope, CiphertextEnvelope.HEADER_LENGTH, cipherTextLength, plainText, 0);
+        cipher.doFinal(envelope, 1 + GCM_IV_LENGTH, GCM_TAG_LENGTH, plainText, written);
+        return plainText;
+    }
+
+    /**
+     * Fill this thread's IV buffer with fresh random bytes
+     */
+    private static byte[] nextIv() {
+        byte[] iv = IV.get();
+        RANDOM.nextBytes(iv);
+        return iv;
     }
 
     /**
@@ -0,0 +1,66 @@
+package com.messenger.encryption;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * HKDF with HMAC-SHA256 (RFC 5869)
+ */
+final class Hkdf {
+    
+    private static final String HMAC = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+    
+    // Looking up a Mac costs more than a chain step, so each thread keeps one and re-keys it
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(HMAC);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    });
+    
+    private Hkdf() {
+    }
+    
+    /**
+     * Extract a pseudorandom key from input keying material
+     * @param salt Salt, or null for a string of zeros
+     * @param inputKeyMaterial Input keying material
+     * @return Pseudorandom key
+     */
+    static byte[] extract(byte[] salt, byte[] inputKeyMaterial) throws GeneralSecurityException {
+        Mac mac = MAC.get();
+        mac.init(new SecretKeySpec(salt != null ? salt : new byte[HASH_LENGTH], HMAC));
+        return mac.doFinal(inputKeyMaterial);
+    }
+    
+    /**
+     * Expand a pseudorandom key into output keying material
+     * @param pseudoRandomKey Pseudorandom key of at least 32 bytes
+     * @param info Context
+     * @param length Number of bytes to derive, at most 8160
+     * @return Output keying material
+     */
+    static byte[] expand(byte[] pseudoRandomKey, byte[] info, int length) throws GeneralSecurityException {
+        if (length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("HKDF output is limited to " + 255 * HASH_LENGTH + " bytes");
+        }
+        Mac mac = MAC.get();
+        mac.init(new SecretKeySpec(pseudoRandomKey, HMAC));
+        
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, counter = 1; offset < length; counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int count = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, output, offset, count);
+            offset += count;
+        }
+        return output;
+    }
+}
@@ -20,15 +20,25 @@ public class KeyExchangeController {
     
     /**
      * Initialize a new key exchange session
-     * @return Session ID and public key
+     * @param mode Ratchet mode, "ec-p256" (default) or "x25519-hkdf"
+     * @return Session ID, mode and public key
      */
     @PostMapping("/init")
-    public ResponseEntity<Map<String, String>> initKeyExchange() {
-        String sessionId = doubleRatchetService.initSession();
+    public ResponseEntity<Map<String, String>> initKeyExchange(
+            @RequestParam(value = "mode", required = false) String mode) {
+        RatchetSession.Mode ratchetMode;
+        try {
+            ratchetMode = mode != null ? RatchetSession.Mode.fromName(mode) : RatchetSession.Mode.EC_P256;
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+        
+        String sessionId = doubleRatchetService.initSession(ratchetMode);
         String publicKey = doubleRatchetService.getPublicKey(sessionId);
         
         Map<String, String> response = new HashMap<>();
         response.put("sessionId", sessionId);
+        response.put("mode", ratchetMode.name());
         response.put("publicKey", publicKey);
         
         return ResponseEntity.ok(response);
@@ -52,6 +62,7 @@ public class KeyExchangeController {
         Map<String, String> response = new HashMap<>();
         response.put("success", String.valueOf(success));
         response.put("sessionId", request.getSessionId());
+        response.put("mode", doubleRatchetService.getMode(request.getSessionId()).name());
         response.put("publicKey", newPublicKey);
         
         return ResponseEntity.ok(response);
@@ -0,0 +1,190 @@
+package com.messenger.encryption;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pools of pre-generated key pairs, so key exchange and key endpoints do not
+ * pay for key generation on the request thread.
+ *
+ * Each algorithm has its own pool, topped up to the high watermark by a
+ * single low-priority background thread whenever it drops below the low
+ * watermark. A request that finds its pool empty generates a key pair
+ * inline, as before. Every key pair is handed out once.
+ */
+@Component
+public class KeyPairPool {
+    
+    /**
+     * Enum for the kinds of key pair kept in a pool
+     */
+    public enum Algorithm {
+        EC_P256("EC", 256),
+        X25519("X25519", 0),
+        RSA_2048("RSA", 2048);
+        
+        private final String name;
+        // Zero for algorithms with a single key size
+        private final int keySize;
+        
+        Algorithm(String name, int keySize) {
+            this.name = name;
+            this.keySize = keySize;
+        }
+        
+        /**
+         * Generate a key pair on the calling thread
+         * @return New key pair
+         */
+        public KeyPair generate() {
+            try {
+                KeyPairGenerator keyGen = KeyPairGenerator.getInstance(name);
+                if (keySize > 0) {
+                    keyGen.initialize(keySize);
+                }
+                return keyGen.generateKeyPair();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Failed to generate " + this + " key pair", e);
+            }
+        }
+    }
+    
+    private final boolean enabled;
+    private final int lowWatermark;
+    private final int highWatermark;
+    
+    private final Map<Algorithm, BlockingQueue<KeyPair>> pools = new EnumMap<>(Algorithm.class);
+    private final Map<Algorithm, Counter> hits = new EnumMap<>(Algorithm.class);
+    private final Map<Algorithm, Counter> misses = new EnumMap<>(Algorithm.class);
+    
+    private final ExecutorService refiller;
+    private final AtomicBoolean refillQueued = new AtomicBoolean();
+    
+    @Autowired
+    public KeyPairPool(MeterRegistry meterRegistry,
+                       @Value("${encryption.key-pool.enabled:true}") boolean enabled,
+                       @Value("${encryption.key-pool.low-watermark:16}") int lowWatermark,
+                       @Value("${encryption.key-pool.high-watermark:64}") int highWatermark) {
+        this.enabled = enabled;
+        this.highWatermark = Math.max(1, highWatermark);
+        this.lowWatermark = Math.min(Math.max(0, lowWatermark), this.highWatermark - 1);
+        
+        for (Algorithm algorithm : Algorithm.values()) {
+            BlockingQueue<KeyPair> pool = new ArrayBlockingQueue<>(this.highWatermark);
+            pools.put(algorithm, pool);
+            
+            String tag = algorithm.name().toLowerCase();
+            Gauge.builder("encryption.key-pool.size", pool, BlockingQueue::size)
+                    .description("Pre-generated key pairs ready to hand out")
+                    .tag("algorithm", tag)
+                    .register(meterRegistry);
+            hits.put(algorithm, Counter.builder("encryption.key-pool.taken")
+                    .description("Key pairs requested from the pool")
+                    .tag("algorithm", tag)
+                    .tag("result", "hit")
+                    .register(meterRegistry));
+            misses.put(algorithm, Counter.builder("encryption.key-pool.taken")
+                    .description("Key pairs requested from the pool")
+                    .tag("algorithm", tag)
+                    .tag("result", "miss")
+                    .register(meterRegistry));
+        }
+        
+        this.refiller = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "key-pair-pool");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+    
+    @PostConstruct
+    public void start() {
+        requestRefill();
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        refiller.shutdownNow();
+    }
+    
+    /**
+     * Take a key pair, generating one inline if the pool is empty
+     * @param algorithm Kind of key pair
+     * @return A key pair no one else has been given
+     */
+    public KeyPair take(Algorithm algorithm) {
+        BlockingQueue<KeyPair> pool = pools.get(algorithm);
+        KeyPair keyPair = pool.poll();
+        if (pool.size() < lowWatermark) {
+            requestRefill();
+        }
+        if (keyPair != null) {
+            hits.get(algorithm).increment();
+            return keyPair;
+        }
+        misses.get(algorithm).increment();
+        return algorithm.generate();
+    }
+    
+    /**
+     * @param algorithm Kind of key pair
+     * @return Number of key pairs ready in the pool
+     */
+    public int size(Algorithm algorithm) {
+        return pools.get(algorithm).size();
+    }
+    
+    private void requestRefill() {
+        if (!enabled || !refillQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refiller.execute(this::refill);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            refillQueued.set(false);
+        }
+    }
+    
+    /**
+     * Top every pool up to the high watermark, always adding to the emptiest
+     * pool next so a slow RSA pool does not hold up a drained EC one
+     */
+    private void refill() {
+        refillQueued.set(false);
+        while (!Thread.currentThread().isInterrupted()) {
+            Algorithm emptiest = null;
+            int smallest = highWatermark;
+            for (Algorithm algorithm : Algorithm.values()) {
+                int size = pools.get(algorithm).size();
+                if (size < smallest) {
+                    emptiest = algorithm;
+                    smallest = size;
+                }
+            }
+            if (emptiest == null) {
+                return;
+            }
+            pools.get(emptiest).offer(emptiest.generate());
+        }
+    }
+}
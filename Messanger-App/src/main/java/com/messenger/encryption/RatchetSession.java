@@ -0,0 +1,421 @@
+package com.messenger.encryption;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.XECPrivateKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPrivateKeySpec;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.security.spec.XECPrivateKeySpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of one Double Ratchet session.
+ *
+ * Every step that reads and replaces keys runs under the session's own lock,
+ * so concurrent requests for the same session each get a distinct message
+ * key and never see a half-updated chain. Different sessions do not contend.
+ *
+ * Message keys are numbered by their position in the current chain. Keys
+ * passed over to reach a later index are kept in a bounded in-memory cache
+ * until asked for once, so out-of-order messages can still be decrypted;
+ * they are not persisted and are dropped when a new chain is established.
+ *
+ * Sessions are persisted in a fixed binary layout (big-endian):
+ * <pre>
+ * version (1) | flags (1) | chain index (4) | DH key pair (96 or 64)
+ *   [ | root key (32) | chain key (32) ]   present once the chain is established
+ * </pre>
+ * The key pair is the private scalar and public X and Y for EC_P256, or
+ * the private scalar and public U for X25519, which is 70 to 166 bytes per session.
+ */
+public class RatchetSession {
+    
+    /**
+     * Rough heap footprint of a session (EC key pair objects, root and chain
+     * keys, map entry), not counting its skipped keys, used for the memory metric
+     */
+    static final int ESTIMATED_BYTES = 2048;
+    
+    /**
+     * Rough heap footprint of one skipped key (key bytes, boxed index, map
+     * entry), used for the memory metric
+     */
+    static final int SKIPPED_KEY_BYTES = 128;
+    
+    static final byte FORMAT_VERSION = 1;
+    private static final int FLAG_ESTABLISHED = 1;
+    private static final int FLAG_X25519 = 2;
+    private static final int KEY_LENGTH = 32;
+    private static final int HEADER_LENGTH = 2 + 4;
+    
+    // Curve of the key pairs generated for EC_P256 sessions
+    private static final ECParameterSpec P256 = p256();
+    
+    private static final byte[] ROOT_INFO = "MessengerRatchetRoot".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHAIN_INFO = "MessengerRatchetChain".getBytes(StandardCharsets.US_ASCII);
+    
+    /**
+     * Enum for the key agreement and key derivation a session uses, chosen when it starts.
+     * EC_P256 is ECDH on P-256 with SHA-256 chains; X25519_HKDF is X25519 with HKDF-SHA256
+     * root and chain derivation.
+     */
+    public enum Mode {
+        EC_P256(KeyPairPool.Algorithm.EC_P256, "EC", "ECDH", 3 * KEY_LENGTH),
+        X25519_HKDF(KeyPairPool.Algorithm.X25519, "X25519", "X25519", 2 * KEY_LENGTH);
+        
+        private final KeyPairPool.Algorithm keyAlgorithm;
+        private final String keyFactory;
+        private final String keyAgreement;
+        private final int keyPairLength;
+        
+        Mode(KeyPairPool.Algorithm keyAlgorithm, String keyFactory, String keyAgreement, int keyPairLength) {
+            this.keyAlgorithm = keyAlgorithm;
+            this.keyFactory = keyFactory;
+            this.keyAgreement = keyAgreement;
+            this.keyPairLength = keyPairLength;
+        }
+        
+        public KeyPairPool.Algorithm getKeyAlgorithm() {
+            return keyAlgorithm;
+        }
+        
+        /**
+         * Mode by name, ignoring case and accepting '-' for '_'
+         * @param name Mode name, e.g. "x25519-hkdf"
+         * @return The mode
+         */
+        public static Mode fromName(String name) {
+            for (Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name.replace('-', '_'))) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("Unknown ratchet mode: " + name);
+        }
+        
+        /**
+         * Decode the other party's X.509 encoded public key
+         * @param encoded Encoded key
+         * @return The public key
+         */
+        public PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+            return KeyFactory.getInstance(keyFactory).generatePublic(new X509EncodedKeySpec(encoded));
+        }
+    }
+    
+    private final String id;
+    private final Mode mode;
+    private KeyPair dhKeyPair;
+    private byte[] rootKey;
+    private byte[] chainKey;
+    private int chainIndex;
+    // Keys skipped over by index, oldest first
+    private final Map<Integer, byte[]> skippedKeys = new LinkedHashMap<>();
+    // Set, under the session's lock, once the store has dropped this instance
+    private boolean retired;
+    private volatile long lastAccessMillis;
+    
+    RatchetSession(String id, Mode mode, KeyPair dhKeyPair) {
+        this.id = id;
+        this.mode = mode;
+        this.dhKeyPair = dhKeyPair;
+        touch();
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public Mode getMode() {
+        return mode;
+    }
+    
+    public synchronized PublicKey getPublicKey() {
+        return dhKeyPair.getPublic();
+    }
+    
+    /**
+     * Whether the store has dropped this instance; callers must hold the session's lock
+     */
+    boolean isRetired() {
+        return retired;
+    }
+    
+    void setRetired(boolean retired) {
+        this.retired = retired;
+    }
+    
+    long getLastAccessMillis() {
+        return lastAccessMillis;
+    }
+    
+    void touch() {
+        lastAccessMillis = System.currentTimeMillis();
+    }
+    
+    /**
+     * Agree on a shared secret with the other party, start a new chain from it
+     * and move on to the next DH key pair
+     * @param remoteKey Other party's public key
+     * @param nextKeyPair Key pair for the next ratchet step
+     */
+    synchronized void establish(PublicKey remoteKey, KeyPair nextKeyPair) throws GeneralSecurityException {
+        KeyAgreement keyAgreement = KeyAgreement.getInstance(mode.keyAgreement);
+        keyAgreement.init(dhKeyPair.getPrivate());
+        keyAgreement.doPhase(remoteKey, true);
+        byte[] sharedSecret = keyAgreement.generateSecret();
+        
+        if (mode == Mode.X25519_HKDF) {
+            byte[] keys = Hkdf.expand(Hkdf.extract(rootKey, sharedSecret), ROOT_INFO, 2 * KEY_LENGTH);
+            rootKey = Arrays.copyOfRange(keys, 0, KEY_LENGTH);
+            chainKey = Arrays.copyOfRange(keys, KEY_LENGTH, 2 * KEY_LENGTH);
+        } else {
+            rootKey = sharedSecret;
+            chainKey = MessageDigest.getInstance("SHA-256").digest(sharedSecret);
+        }
+        chainIndex = 0;
+        skippedKeys.clear();
+        dhKeyPair = nextKeyPair;
+    }
+    
+    /**
+     * Derive the next message key and ratchet the chain key forward
+     * @return Secret key for message encryption
+     */
+    synchronized SecretKey nextMessageKey() throws GeneralSecurityException {
+        if (chainKey == null) {
+            throw new IllegalArgumentException("No chain key found for session");
+        }
+        
+        byte[] messageKeyBytes;
+        if (mode == Mode.X25519_HKDF) {
+            // One expansion yields both the message key and the next chain key
+            byte[] keys = Hkdf.expand(chainKey, CHAIN_INFO, 2 * KEY_LENGTH);
+            messageKeyBytes = Arrays.copyOfRange(keys, 0, KEY_LENGTH);
+            chainKey = Arrays.copyOfRange(keys, KEY_LENGTH, 2 * KEY_LENGTH);
+        } else {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(chainKey);
+            digest.update((byte) 1);
+            messageKeyBytes = digest.digest();
+            
+            digest.update(chainKey);
+            digest.update((byte) 2);
+            chainKey = digest.digest();
+        }
+        chainIndex++;
+        
+        return new SecretKeySpec(messageKeyBytes, 0, 32, "AES");
+    }
+    
+    /**
+     * Derive the next message keys in one step
+     * @param count Number of keys
+     * @return The keys with their indices, in order
+     */
+    synchronized List<IndexedMessageKey> nextMessageKeys(int count) throws GeneralSecurityException {
+        List<IndexedMessageKey> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = chainIndex;
+            keys.add(new IndexedMessageKey(index, nextMessageKey()));
+        }
+        return keys;
+    }
+    
+    /**
+     * @return Number of skipped keys kept for out-of-order messages
+     */
+    synchronized int getSkippedKeyCount() {
+        return skippedKeys.size();
+    }
+    
+    /**
+     * Get the message key at an index of the current chain. Keys ahead of the
+     * chain are reached by ratcheting forward and caching the ones passed
+     * over; keys behind it are taken from that cache, once each.
+     * @param index Message index
+     * @param maxSkip Furthest the chain may be moved ahead in one call
+     * @param maxSkippedKeys Most skipped keys kept; the oldest are dropped first
+     * @return Secret key for the message
+     */
+    synchronized SecretKey messageKey(int index, int maxSkip, int maxSkippedKeys) throws GeneralSecurityException {
+        if (chainKey == null) {
+            throw new IllegalArgumentException("No chain key found for session");
+        }
+        if (index < chainIndex) {
+            byte[] key = skippedKeys.remove(index);
+            if (key == null) {
+                throw new IllegalArgumentException("Message key " + index + " was already used or is no longer kept");
+            }
+            return new SecretKeySpec(key, "AES");
+        }
+        if (index - chainIndex > maxSkip) {
+            throw new IllegalArgumentException("Message index " + index + " is too far ahead of the chain");
+        }
+        
+        while (chainIndex < index) {
+            int skipped = chainIndex;
+            skippedKeys.put(skipped, nextMessageKey().getEncoded());
+            if (skippedKeys.size() > maxSkippedKeys) {
+                Iterator<Integer> oldest = skippedKeys.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        return nextMessageKey();
+    }
+    
+    /**
+     * A message key and its index in the chain
+     */
+    public static class IndexedMessageKey {
+        
+        private final int index;
+        private final SecretKey key;
+        
+        IndexedMessageKey(int index, SecretKey key) {
+            this.index = index;
+            this.key = key;
+        }
+        
+        public int getIndex() {
+            return index;
+        }
+        
+        public SecretKey getKey() {
+            return key;
+        }
+    }
+    
+    /**
+     * Encode the session's keys and counters in the persisted layout
+     * @return Serialized state
+     */
+    synchronized byte[] toBytes() {
+        boolean established = chainKey != null;
+        ByteBuffer buffer = ByteBuffer.allocate(length(mode, established));
+        buffer.put(FORMAT_VERSION);
+        buffer.put((byte) ((established ? FLAG_ESTABLISHED : 0) | (mode == Mode.X25519_HKDF ? FLAG_X25519 : 0)));
+        buffer.putInt(chainIndex);
+        
+        if (mode == Mode.X25519_HKDF) {
+            // The raw X25519 scalar is already 32 bytes, little-endian as in RFC 7748
+            buffer.put(((XECPrivateKey) dhKeyPair.getPrivate()).getScalar()
+                    .orElseThrow(() -> new IllegalStateException("X25519 private key is not extractable")));
+            putScalar(buffer, ((XECPublicKey) dhKeyPair.getPublic()).getU());
+        } else {
+            ECPoint point = ((ECPublicKey) dhKeyPair.getPublic()).getW();
+            putScalar(buffer, ((ECPrivateKey) dhKeyPair.getPrivate()).getS());
+            putScalar(buffer, point.getAffineX());
+            putScalar(buffer, point.getAffineY());
+        }
+        
+        if (established) {
+            buffer.put(rootKey);
+            buffer.put(chainKey);
+        }
+        return buffer.array();
+    }
+    
+    /**
+     * Rebuild a session from its persisted layout
+     * @param id Session ID
+     * @param state Serialized state
+     * @return The session
+     */
+    static RatchetSession fromBytes(String id, byte[] state) throws GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        if (state.length < HEADER_LENGTH || buffer.get() != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported ratchet session format");
+        }
+        byte flags = buffer.get();
+        boolean established = (flags & FLAG_ESTABLISHED) != 0;
+        Mode mode = (flags & FLAG_X25519) != 0 ? Mode.X25519_HKDF : Mode.EC_P256;
+        if (state.length != length(mode, established)) {
+            throw new IllegalArgumentException("Truncated ratchet session state");
+        }
+        int chainIndex = buffer.getInt();
+        
+        KeyFactory keyFactory = KeyFactory.getInstance(mode.keyFactory);
+        KeyPair keyPair;
+        if (mode == Mode.X25519_HKDF) {
+            byte[] scalar = new byte[KEY_LENGTH];
+            buffer.get(scalar);
+            keyPair = new KeyPair(
+                    keyFactory.generatePublic(new XECPublicKeySpec(NamedParameterSpec.X25519, getScalar(buffer))),
+                    keyFactory.generatePrivate(new XECPrivateKeySpec(NamedParameterSpec.X25519, scalar)));
+        } else {
+            BigInteger s = getScalar(buffer);
+            ECPoint point = new ECPoint(getScalar(buffer), getScalar(buffer));
+            keyPair = new KeyPair(
+                    keyFactory.generatePublic(new ECPublicKeySpec(point, P256)),
+                    keyFactory.generatePrivate(new ECPrivateKeySpec(s, P256)));
+        }
+        
+        RatchetSession session = new RatchetSession(id, mode, keyPair);
+        if (established) {
+            session.rootKey = new byte[KEY_LENGTH];
+            session.chainKey = new byte[KEY_LENGTH];
+            buffer.get(session.rootKey);
+            buffer.get(session.chainKey);
+            session.chainIndex = chainIndex;
+        }
+        return session;
+    }
+    
+    private static int length(Mode mode, boolean established) {
+        return HEADER_LENGTH + mode.keyPairLength + (established ? 2 * KEY_LENGTH : 0);
+    }
+    
+    /**
+     * Write an unsigned value as exactly 32 bytes
+     */
+    private static void putScalar(ByteBuffer buffer, BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        int length = Math.min(bytes.length, KEY_LENGTH);
+        for (int i = length; i < KEY_LENGTH; i++) {
+            buffer.put((byte) 0);
+        }
+        buffer.put(bytes, bytes.length - length, length);
+    }
+    
+    private static BigInteger getScalar(ByteBuffer buffer) {
+        byte[] bytes = new byte[KEY_LENGTH];
+        buffer.get(bytes);
+        return new BigInteger(1, bytes);
+    }
+    
+    private static ECParameterSpec p256() {
+        try {
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec("secp256r1"));
+            return parameters.getParameterSpec(ECParameterSpec.class);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("secp256r1 is not available", e);
+        }
+    }
+}
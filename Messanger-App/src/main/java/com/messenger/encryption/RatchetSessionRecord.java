@@ -0,0 +1,31 @@
+package com.messenger.encryption;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Entity holding the persisted state of a ratchet session, in the binary
+ * layout described on {@link RatchetSession}
+ */
+@Data
+@Entity
+@Table(name = "ratchet_sessions",
+        indexes = @Index(name = "idx_ratchet_sessions_updated_at", columnList = "updated_at"))
+@NoArgsConstructor
+@AllArgsConstructor
+public class RatchetSessionRecord {
+    
+    @Id
+    @Column(length = 36)
+    private String id;
+    
+    @Column(nullable = false, length = 256)
+    private byte[] state;
+    
+    @Column(name = "updated_at", nullable = false)
+    private LocalDateTime updatedAt;
+}
@@ -0,0 +1,39 @@
+package com.messenger.encryption;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+/**
+ * Repository for persisted ratchet sessions
+ */
+@Repository
+public interface RatchetSessionRecordRepository extends JpaRepository<RatchetSessionRecord, String> {
+    
+    /**
+     * Insert or replace a session's state in one statement, without reading it first
+     * @param id Session ID
+     * @param state Serialized state
+     * @return Number of written rows
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO ratchet_sessions (id, state, updated_at) VALUES (:id, :state, now()) " +
+            "ON CONFLICT (id) DO UPDATE SET state = EXCLUDED.state, updated_at = EXCLUDED.updated_at", nativeQuery = true)
+    int upsert(@Param("id") String id, @Param("state") byte[] state);
+    
+    /**
+     * Delete sessions that have not changed since the cutoff
+     * @param cutoff Oldest last update to keep
+     * @return Number of deleted rows
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "DELETE FROM ratchet_sessions WHERE updated_at < :cutoff", nativeQuery = true)
+    int deleteUpdatedBefore(@Param("cutoff") LocalDateTime cutoff);
+}
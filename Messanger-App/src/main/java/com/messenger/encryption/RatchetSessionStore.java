@@ -0,0 +1,371 @@
+package com.messenger.encryption;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Store of ratchet sessions: hot sessions in memory, all of them in the database.
+ *
+ * Changed sessions are queued and written behind by a background thread, so
+ * a ratchet step never waits on the database. Sessions are loaded lazily
+ * the first time they are used after a restart or after being dropped from
+ * memory, so a deploy does not force clients to redo key exchange. A step
+ * taken within the last flush interval before a crash is lost.
+ *
+ * Sessions not used for longer than the idle TTL are dropped from memory by
+ * a periodic sweep. When more than the maximum are in memory, the least
+ * recently used are dropped down to 90% of it in one go, so the cost of
+ * finding them is paid once per many loads rather than on every one.
+ * Sessions that have not changed for the retention period are deleted.
+ *
+ * Skipped message keys are counted across all sessions in memory. Once the
+ * total reaches its cap, a session may only replace its own oldest skipped
+ * keys with new ones instead of adding to them, so the cache cannot grow
+ * with the number of sessions beyond the cap.
+ *
+ * Every change goes through {@link #update}, which makes it and queues the
+ * write under the session's lock, and sessions are only dropped from memory
+ * under that same lock. So a session dropped with a change not yet written
+ * is always still queued, and is served from the queue rather than from its
+ * older row.
+ */
+@Component
+public class RatchetSessionStore {
+    
+    private final RatchetSessionRecordRepository repository;
+    
+    private final Map<String, RatchetSession> sessions = new ConcurrentHashMap<>();
+    // Sessions changed since they were last written, including ones already dropped from memory
+    private final Map<String, RatchetSession> pending = new ConcurrentHashMap<>();
+    // Sessions being written right now, whose row may still be older than their state
+    private final Map<String, RatchetSession> writing = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // Skipped keys held by the sessions in memory
+    private final AtomicLong skippedKeys = new AtomicLong();
+    
+    private final long idleTtlMillis;
+    private final int maxSessions;
+    private final Duration retention;
+    private final long flushIntervalMillis;
+    private final long maxSkippedKeysTotal;
+    
+    private final Counter created;
+    private final Counter loaded;
+    private final Counter written;
+    private final Counter evictedIdle;
+    private final Counter evictedCapacity;
+    
+    private final ScheduledExecutorService writer;
+    
+    @Autowired
+    public RatchetSessionStore(RatchetSessionRecordRepository repository,
+                               MeterRegistry meterRegistry,
+                               @Value("${ratchet.session.idle-ttl:30m}") Duration idleTtl,
+                               @Value("${ratchet.session.max-sessions:100000}") int maxSessions,
+                               @Value("${ratchet.session.retention:30d}") Duration retention,
+                               @Value("${ratchet.session.flush-interval:1000}") long flushIntervalMillis,
+                               @Value("${ratchet.session.max-skipped-keys-total:500000}") long maxSkippedKeysTotal) {
+        this.repository = repository;
+        this.idleTtlMillis = idleTtl.toMillis();
+        this.maxSessions = Math.max(1, maxSessions);
+        this.retention = retention;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxSkippedKeysTotal = maxSkippedKeysTotal;
+        
+        Gauge.builder("ratchet.sessions", sessions, Map::size)
+                .description("Ratchet sessions held in memory")
+                .register(meterRegistry);
+        Gauge.builder("ratchet.sessions.memory", sessions, map -> (double) map.size() * RatchetSession.ESTIMATED_BYTES
+                        + (double) skippedKeys.get() * RatchetSession.SKIPPED_KEY_BYTES)
+                .description("Estimated heap used by ratchet sessions")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("ratchet.sessions.skipped-keys", skippedKeys, AtomicLong::get)
+                .description("Skipped message keys held by ratchet sessions in memory")
+                .register(meterRegistry);
+        Gauge.builder("ratchet.sessions.pending", pending, Map::size)
+                .description("Ratchet sessions changed but not yet written")
+                .register(meterRegistry);
+        this.created = Counter.builder("ratchet.sessions.created")
+                .description("Ratchet sessions started")
+                .register(meterRegistry);
+        this.loaded = Counter.builder("ratchet.sessions.loaded")
+                .description("Ratchet sessions loaded from the database")
+                .register(meterRegistry);
+        this.written = Counter.builder("ratchet.sessions.written")
+                .description("Ratchet session states written to the database")
+                .register(meterRegistry);
+        this.evictedIdle = Counter.builder("ratchet.sessions.evicted")
+                .description("Ratchet sessions dropped from memory")
+                .tag("reason", "idle")
+                .register(meterRegistry);
+        this.evictedCapacity = Counter.builder("ratchet.sessions.evicted")
+                .description("Ratchet sessions dropped from memory")
+                .tag("reason", "capacity")
+                .register(meterRegistry);
+        
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ratchet-session-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    @PostConstruct
+    public void start() {
+        writer.scheduleWithFixedDelay(this::flushSafely, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        writer.shutdown();
+        writer.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+    }
+    
+    /**
+     * Add a new session, evicting the least recently used ones if memory is full
+     * @param session Session to add
+     */
+    public void add(RatchetSession session) {
+        sessions.put(session.getId(), session);
+        pending.put(session.getId(), session);
+        created.increment();
+        if (sessions.size() > maxSessions) {
+            evictOverflow();
+        }
+    }
+    
+    /**
+     * Look up a session, loading it if it is not in memory, and mark it as used
+     * @param sessionId Session ID
+     * @return The session, or null if unknown
+     */
+    public RatchetSession get(String sessionId) {
+        if (sessionId == null) {
+            return null;
+        }
+        RatchetSession session = sessions.get(sessionId);
+        if (session == null) {
+            session = load(sessionId);
+            if (session == null) {
+                return null;
+            }
+        }
+        session.touch();
+        return session;
+    }
+    
+    /**
+     * Change a session under its lock and queue it to be written. The change
+     * and the queueing happen together, so the session cannot be dropped from
+     * memory in between and reloaded from its older row; an instance dropped
+     * before the lock was taken is retired, and the session is looked up again.
+     * @param sessionId Session ID
+     * @param step Change to make
+     * @return The step's result
+     * @throws IllegalArgumentException if the session is unknown
+     */
+    public <T> T update(String sessionId, Step<T> step) throws GeneralSecurityException {
+        while (true) {
+            RatchetSession session = get(sessionId);
+            if (session == null) {
+                throw new IllegalArgumentException("Invalid session ID");
+            }
+            synchronized (session) {
+                if (session.isRetired()) {
+                    continue;
+                }
+                int skippedBefore = session.getSkippedKeyCount();
+                try {
+                    T result = step.apply(session);
+                    pending.put(session.getId(), session);
+                    return result;
+                } finally {
+                    skippedKeys.addAndGet(session.getSkippedKeyCount() - skippedBefore);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Number of skipped keys a session may keep, to be called from within a
+     * step: the per-session limit, or once the total across sessions has
+     * reached its cap, no more than the session already holds
+     * @param session Session being changed
+     * @param maxSkippedKeys Per-session limit
+     * @return Most skipped keys the session may keep
+     */
+    public int skippedKeyAllowance(RatchetSession session, int maxSkippedKeys) {
+        if (skippedKeys.get() < maxSkippedKeysTotal) {
+            return maxSkippedKeys;
+        }
+        return Math.min(maxSkippedKeys, session.getSkippedKeyCount());
+    }
+    
+    /**
+     * A change to a session, run under its lock
+     */
+    @FunctionalInterface
+    public interface Step<T> {
+        T apply(RatchetSession session) throws GeneralSecurityException;
+    }
+    
+    /**
+     * @return Number of sessions held in memory
+     */
+    public int size() {
+        return sessions.size();
+    }
+    
+    /**
+     * Write every queued session. A session changed again while it is being
+     * written is queued again and written on the next run.
+     */
+    void flush() {
+        for (RatchetSession session : pending.values()) {
+            writing.put(session.getId(), session);
+            if (!pending.remove(session.getId(), session)) {
+                writing.remove(session.getId(), session);
+                continue;
+            }
+            try {
+                repository.upsert(session.getId(), session.toBytes());
+                written.increment();
+            } catch (RuntimeException e) {
+                pending.putIfAbsent(session.getId(), session);
+                throw e;
+            } finally {
+                writing.remove(session.getId(), session);
+            }
+        }
+    }
+    
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Left queued; retried on the next run
+        }
+    }
+    
+    /**
+     * Drop sessions idle for longer than the TTL from memory, and delete
+     * sessions that have not changed for the retention period
+     */
+    @Scheduled(fixedDelayString = "${ratchet.session.sweep-interval:60000}")
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (RatchetSession session : sessions.values()) {
+            if (now - session.getLastAccessMillis() > idleTtlMillis && evict(session)) {
+                evictedIdle.increment();
+            }
+        }
+        repository.deleteUpdatedBefore(LocalDateTime.now().minus(retention));
+    }
+    
+    private RatchetSession load(String sessionId) {
+        // A session dropped from memory before its last change was written is still queued
+        RatchetSession session = pending.get(sessionId);
+        if (session == null) {
+            session = writing.get(sessionId);
+        }
+        if (session == null) {
+            Optional<RatchetSessionRecord> record = repository.findById(sessionId);
+            if (record.isEmpty()) {
+                return null;
+            }
+            try {
+                session = RatchetSession.fromBytes(sessionId, record.get().getState());
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("Failed to load ratchet session", e);
+            }
+            loaded.increment();
+        }
+        
+        // Another request may have loaded it meanwhile; everyone must share one instance.
+        // A queued instance that was retired is live again once it is back in memory.
+        RatchetSession existing;
+        synchronized (session) {
+            existing = sessions.putIfAbsent(sessionId, session);
+            if (existing == null) {
+                session.setRetired(false);
+                skippedKeys.addAndGet(session.getSkippedKeyCount());
+            }
+        }
+        if (existing != null) {
+            return existing;
+        }
+        if (sessions.size() > maxSessions) {
+            evictOverflow();
+        }
+        return session;
+    }
+    
+    /**
+     * Drop a session from memory under its lock, so no step is half done on
+     * it, and retire the instance so holders of it look the session up again
+     * @return Whether this call dropped it
+     */
+    private boolean evict(RatchetSession session) {
+        synchronized (session) {
+            if (!sessions.remove(session.getId(), session)) {
+                return false;
+            }
+            session.setRetired(true);
+            skippedKeys.addAndGet(-session.getSkippedKeyCount());
+            return true;
+        }
+    }
+    
+    private void evictOverflow() {
+        // One thread trims for everyone; the others carry on while it does
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            int excess = sessions.size() - maxSessions * 9 / 10;
+            if (excess <= 0) {
+                return;
+            }
+            // Access times keep changing, so sort a snapshot of them and evict up to the cutoff
+            long[] accessTimes = sessions.values().stream().mapToLong(RatchetSession::getLastAccessMillis).toArray();
+            if (accessTimes.length == 0) {
+                return;
+            }
+            Arrays.sort(accessTimes);
+            long cutoff = accessTimes[Math.min(excess, accessTimes.length) - 1];
+            for (RatchetSession session : sessions.values()) {
+                if (excess <= 0) {
+                    break;
+                }
+                if (session.getLastAccessMillis() <= cutoff && evict(session)) {
+                    evictedCapacity.increment();
+                    excess--;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+}
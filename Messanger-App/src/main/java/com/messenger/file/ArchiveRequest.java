@@ -0,0 +1,36 @@
+package com.messenger.file;
+
+import javax.validation.constraints.NotEmpty;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data transfer object for downloading several files as one ZIP archive
+ */
+public class ArchiveRequest {
+    
+    @NotEmpty(message = "At least one file is required")
+    private List<Long> fileIds;
+    
+    /**
+     * Decryption keys of encrypted files, by file ID. Encrypted files
+     * without a key are added as stored.
+     */
+    private Map<Long, String> decryptionKeys;
+    
+    public List<Long> getFileIds() {
+        return fileIds;
+    }
+    
+    public void setFileIds(List<Long> fileIds) {
+        this.fileIds = fileIds;
+    }
+    
+    public Map<Long, String> getDecryptionKeys() {
+        return decryptionKeys;
+    }
+    
+    public void setDecryptionKeys(Map<Long, String> decryptionKeys) {
+        this.decryptionKeys = decryptionKeys;
+    }
+}
@@ -0,0 +1,75 @@
+package com.messenger.file;
+
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.PositiveOrZero;
+
+/**
+ * Data transfer object for starting a resumable upload
+ */
+public class CreateUploadRequest {
+    
+    @NotNull(message = "Recipient ID is required")
+    private Long recipientId;
+    
+    @NotBlank(message = "Filename cannot be blank")
+    private String filename;
+    
+    private String contentType;
+    
+    @NotNull(message = "Size is required")
+    @PositiveOrZero(message = "Size cannot be negative")
+    private Long size;
+    
+    private boolean encrypt;
+    
+    private String encryptionKey;
+    
+    public Long getRecipientId() {
+        return recipientId;
+    }
+    
+    public void setRecipientId(Long recipientId) {
+        this.recipientId = recipientId;
+    }
+    
+    public String getFilename() {
+        return filename;
+    }
+    
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+    
+    public String getContentType() {
+        return contentType;
+    }
+    
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+    
+    public Long getSize() {
+        return size;
+    }
+    
+    public void setSize(Long size) {
+        this.size = size;
+    }
+    
+    public boolean isEncrypt() {
+        return encrypt;
+    }
+    
+    public void setEncrypt(boolean encrypt) {
+        this.encrypt = encrypt;
+    }
+    
+    public String getEncryptionKey() {
+        return encryptionKey;
+    }
+    
+    public void setEncryptionKey(String encryptionKey) {
+        this.encryptionKey = encryptionKey;
+    }
+}
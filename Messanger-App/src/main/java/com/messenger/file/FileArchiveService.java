@@ -0,0 +1,182 @@
+package com.messenger.file;
+
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a set of shared files as a ZIP archive straight to a response.
+ *
+ * Each file is streamed from the store into its entry, decrypting or
+ * decompressing on the way, so memory use does not depend on the number or
+ * size of the files and no archive is ever built on disk. Formats that are
+ * compressed already are added uncompressed: as STORED entries when the
+ * file's CRC was recorded at upload, which a STORED entry needs before its
+ * data, and otherwise deflated at level 0, which costs no more.
+ */
+@Service
+public class FileArchiveService {
+    
+    private static final Set<String> COMPRESSED_EXTENSIONS =
+            Set.of("jpg", "jpeg", "png", "gif", "docx", "xlsx", "pptx");
+    
+    private final FileService fileService;
+    private final FileStore fileStore;
+    private final int maxFiles;
+    
+    @Autowired
+    public FileArchiveService(FileService fileService,
+                              FileStore fileStore,
+                              @Value("${file.archive.max-files:500}") int maxFiles) {
+        this.fileService = fileService;
+        this.fileStore = fileStore;
+        this.maxFiles = maxFiles;
+    }
+    
+    /**
+     * An archived file and how to read it
+     */
+    public static class ArchiveEntry {
+        private final SharedFile sharedFile;
+        private final String decryptionKey;
+        
+        ArchiveEntry(SharedFile sharedFile, String decryptionKey) {
+            this.sharedFile = sharedFile;
+            this.decryptionKey = decryptionKey;
+        }
+        
+        public SharedFile getSharedFile() {
+            return sharedFile;
+        }
+        
+        boolean isDecrypted() {
+            return sharedFile.isEncrypted() && decryptionKey != null;
+        }
+    }
+    
+    /**
+     * Look up and check the files to archive before anything is written,
+     * so that problems are reported as an error instead of a broken archive
+     * @param userId Current user ID; only files the user sent or received can be archived
+     * @param request File IDs and decryption keys
+     * @return Entries in the requested order, without duplicates
+     * @throws IllegalArgumentException if a file is missing, not the user's or cannot be decrypted
+     */
+    public List<ArchiveEntry> prepare(Long userId, ArchiveRequest request) {
+        Set<Long> fileIds = new LinkedHashSet<>(request.getFileIds());
+        if (fileIds.size() > maxFiles) {
+            throw new IllegalArgumentException("An archive can hold at most " + maxFiles + " files");
+        }
+        Map<Long, String> keys = request.getDecryptionKeys() != null ? request.getDecryptionKeys() : Map.of();
+        
+        List<ArchiveEntry> entries = new ArrayList<>(fileIds.size());
+        for (Long fileId : fileIds) {
+            SharedFile sharedFile;
+            try {
+                sharedFile = fileService.getFile(fileId);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("File not found with id " + fileId);
+            }
+            if (!userId.equals(sharedFile.getSenderId()) && !userId.equals(sharedFile.getRecipientId())) {
+                throw new IllegalArgumentException("File not found with id " + fileId);
+            }
+            if (!fileStore.exists(sharedFile.getPath())) {
+                throw new IllegalArgumentException("Content of file " + fileId + " is missing");
+            }
+            
+            ArchiveEntry entry = new ArchiveEntry(sharedFile, keys.get(fileId));
+            if (entry.isDecrypted()) {
+                // Opening decrypts the first chunk, which is enough to catch a wrong key
+                try (InputStream ignored = fileService.openDecryptedStream(sharedFile, entry.decryptionKey, 0)) {
+                    // checked
+                } catch (IOException | RuntimeException e) {
+                    throw new IllegalArgumentException("Could not decrypt file " + fileId);
+                }
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+    
+    /**
+     * Write entries as a ZIP archive
+     * @param entries Files from {@link #prepare}
+     * @param out Stream to write the archive to; not closed
+     */
+    public void writeArchive(List<ArchiveEntry> entries, OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        Set<String> names = new HashSet<>();
+        for (ArchiveEntry entry : entries) {
+            SharedFile sharedFile = entry.sharedFile;
+            ZipEntry zipEntry = new ZipEntry(uniqueName(sharedFile.getFilename(), names));
+            zipEntry.setTimeLocal(sharedFile.getUploadTime());
+            
+            // Raw bytes of an encrypted file do not match its recorded size and checksum
+            boolean plain = entry.isDecrypted() || !sharedFile.isEncrypted();
+            if (isCompressed(sharedFile) && plain && sharedFile.getCrc32() != null) {
+                zipEntry.setMethod(ZipEntry.STORED);
+                zipEntry.setSize(sharedFile.getSize());
+                zipEntry.setCompressedSize(sharedFile.getSize());
+                zipEntry.setCrc(sharedFile.getCrc32());
+            } else {
+                zipEntry.setMethod(ZipEntry.DEFLATED);
+                zip.setLevel(isCompressed(sharedFile) ? Deflater.NO_COMPRESSION : Deflater.BEST_SPEED);
+            }
+            
+            zip.putNextEntry(zipEntry);
+            try (InputStream in = open(entry)) {
+                StreamUtils.copy(in, zip);
+            }
+            zip.closeEntry();
+        }
+        zip.finish();
+        zip.flush();
+    }
+    
+    private InputStream open(ArchiveEntry entry) throws IOException {
+        SharedFile sharedFile = entry.sharedFile;
+        if (entry.isDecrypted()) {
+            return fileService.openDecryptedStream(sharedFile, entry.decryptionKey, 0);
+        }
+        if (sharedFile.isEncrypted()) {
+            return fileStore.open(sharedFile.getPath(), 0);
+        }
+        return fileService.openContentStream(sharedFile, 0);
+    }
+    
+    private static boolean isCompressed(SharedFile sharedFile) {
+        String extension = FilenameUtils.getExtension(sharedFile.getFilename());
+        return extension != null && COMPRESSED_EXTENSIONS.contains(extension.toLowerCase());
+    }
+    
+    /**
+     * Entry name for a file, made unique within the archive as "name (2).ext"
+     */
+    private static String uniqueName(String filename, Set<String> names) {
+        String safe = filename.replace('\\', '_').replace('/', '_');
+        String base = FilenameUtils.getBaseName(safe);
+        String extension = FilenameUtils.getExtension(safe);
+        String suffix = extension.isEmpty() ? "" : "." + extension;
+        
+        String name = safe;
+        for (int i = 2; !names.add(name); i++) {
+            name = base + " (" + i + ")" + suffix;
+        }
+        return name;
+    }
+}
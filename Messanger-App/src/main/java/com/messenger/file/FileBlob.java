@@ -0,0 +1,48 @@
+package com.messenger.file;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Entity representing stored file content, shared by every file with the
+ * same bytes. Keyed by the SHA-256 of the content, suffixed with the codec
+ * for compressed content (see {@link SharedFile#blobId}).
+ */
+@Data
+@Entity
+@Table(name = "file_blobs")
+@NoArgsConstructor
+@AllArgsConstructor
+public class FileBlob {
+    
+    @Id
+    @Column(length = 72)
+    private String sha256;
+    
+    @Column(nullable = false)
+    private String path;
+    
+    @Column(name = "file_size", nullable = false)
+    private Long size;
+    
+    /**
+     * Number of shared files pointing at this content; the content is
+     * deleted when it drops to zero
+     */
+    @Column(name = "ref_count", nullable = false)
+    private Long refCount;
+    
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+    
+    /**
+     * When a reference was last taken; the garbage collector leaves content
+     * alone for a while after this, since the referencing file may not be saved yet
+     */
+    @Column(name = "last_acquired_at")
+    private LocalDateTime lastAcquiredAt;
+}
@@ -0,0 +1,62 @@
+package com.messenger.file;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Moves compressed blobs to IDs that carry their codec outside the hash.
+ *
+ * Compressed blobs used to be keyed by SHA-256 of the content followed by
+ * ":GZIP", which is also the plain SHA-256 of an upload with those bytes, so
+ * a crafted file could be deduplicated onto content stored with another
+ * codec. Their IDs now get a "-gzip" suffix, which no content hash has.
+ * Schema updates do not widen existing columns, so that is done here too.
+ * Both steps only change anything on the first start after upgrading.
+ */
+@Component
+@DependsOn("entityManagerFactory")
+public class FileBlobIdMigration {
+    
+    private static final int BLOB_ID_LENGTH = 72;
+    
+    private final JdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    public FileBlobIdMigration(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+    
+    @PostConstruct
+    public void migrate() {
+        widen("file_blobs", "sha256");
+        widen("shared_files", "blob_sha256");
+        
+        // One statement, so blobs and the files pointing at them are renamed together
+        jdbcTemplate.update("WITH renamed AS (" +
+                "UPDATE file_blobs SET sha256 = sha256 || '-gzip' WHERE sha256 IN (" +
+                "SELECT blob_sha256 FROM shared_files WHERE codec = 'GZIP' AND blob_sha256 NOT LIKE '%-gzip') " +
+                "RETURNING sha256) " +
+                "UPDATE shared_files SET blob_sha256 = blob_sha256 || '-gzip' " +
+                "WHERE codec = 'GZIP' AND blob_sha256 NOT LIKE '%-gzip'");
+    }
+    
+    /**
+     * Widen a varchar column to the blob ID length unless it already is, so
+     * the table is only locked when there is something to change
+     */
+    private void widen(String table, String column) {
+        Integer length = jdbcTemplate.query(
+                "SELECT character_maximum_length FROM information_schema.columns " +
+                        "WHERE table_schema = current_schema() AND table_name = ? AND column_name = ?",
+                rs -> rs.next() ? rs.getInt(1) : null,
+                table, column);
+        if (length != null && length < BLOB_ID_LENGTH) {
+            jdbcTemplate.execute("ALTER TABLE " + table + " ALTER COLUMN " + column +
+                    " TYPE varchar(" + BLOB_ID_LENGTH + ")");
+        }
+    }
+}
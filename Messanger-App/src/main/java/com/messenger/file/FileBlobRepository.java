@@ -0,0 +1,80 @@
+package com.messenger.file;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Repository for deduplicated file content
+ */
+@Repository
+public interface FileBlobRepository extends JpaRepository<FileBlob, String> {
+    
+    /**
+     * Take a reference to content, creating its row on first use.
+     * A single upsert, so concurrent uploads of the same bytes cannot both
+     * insert, and it waits on a concurrent release of the same row.
+     * @param sha256 Content hash
+     * @param path Stored name of the content
+     * @param size Content size
+     * @return Number of affected rows
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO file_blobs (sha256, path, file_size, ref_count, created_at, last_acquired_at) " +
+            "VALUES (:sha256, :path, :size, 1, now(), now()) " +
+            "ON CONFLICT (sha256) DO UPDATE SET ref_count = file_blobs.ref_count + 1, last_acquired_at = now()",
+            nativeQuery = true)
+    int acquire(@Param("sha256") String sha256,
+                @Param("path") String path,
+                @Param("size") Long size);
+    
+    /**
+     * Drop a reference to content
+     * @param sha256 Content hash
+     * @return Number of updated rows
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE FileBlob b SET b.refCount = b.refCount - 1 WHERE b.sha256 = :sha256 AND b.refCount > 0")
+    int release(@Param("sha256") String sha256);
+    
+    /**
+     * Delete the row for content nothing refers to any more
+     * @param sha256 Content hash
+     * @return Number of deleted rows
+     */
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM FileBlob b WHERE b.sha256 = :sha256 AND b.refCount <= 0")
+    int deleteIfUnreferenced(@Param("sha256") String sha256);
+    
+    /**
+     * Find content rows by stored name
+     * @param paths Stored names
+     * @return Matching rows
+     */
+    List<FileBlob> findByPathIn(Collection<String> paths);
+    
+    /**
+     * Delete the row for content that no shared file points at, whatever its
+     * reference count says. Counts can leak when a process dies between taking
+     * a reference and saving the file.
+     * @param sha256 Content hash
+     * @param cutoff Only if no reference was taken after this time
+     * @return Number of deleted rows
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "DELETE FROM file_blobs b WHERE b.sha256 = :sha256 " +
+            "AND COALESCE(b.last_acquired_at, b.created_at) < :cutoff " +
+            "AND NOT EXISTS (SELECT 1 FROM shared_files f WHERE f.blob_sha256 = b.sha256)", nativeQuery = true)
+    int deleteIfOrphaned(@Param("sha256") String sha256, @Param("cutoff") LocalDateTime cutoff);
+}
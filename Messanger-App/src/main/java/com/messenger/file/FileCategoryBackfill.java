@@ -0,0 +1,34 @@
+package com.messenger.file;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Assigns a category to files stored before categories existed, so they
+ * show up in filtered conversation listings. Runs once at startup; after
+ * the first run it only touches rows that are still uncategorised.
+ */
+@Component
+@DependsOn("entityManagerFactory")
+public class FileCategoryBackfill {
+    
+    private final FileRepository fileRepository;
+    
+    @Autowired
+    public FileCategoryBackfill(FileRepository fileRepository) {
+        this.fileRepository = fileRepository;
+    }
+    
+    @PostConstruct
+    public void backfill() {
+        for (SharedFile.Category category : SharedFile.Category.values()) {
+            for (String extension : category.getExtensions()) {
+                fileRepository.backfillCategory(category, "." + extension);
+            }
+        }
+        fileRepository.backfillRemainingCategories(SharedFile.Category.OTHER);
+    }
+}
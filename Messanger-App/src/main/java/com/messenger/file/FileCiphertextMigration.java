@@ -0,0 +1,56 @@
+package com.messenger.file;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Migrates encrypted files from Base64 text to binary ciphertext envelopes
+ * in small batches, in ID order
+ */
+@Component
+public class FileCiphertextMigration {
+    
+    private static final int BATCH_SIZE = 50;
+    
+    private final FileRepository fileRepository;
+    private final FileService fileService;
+    private final boolean migrate;
+    
+    private long lastMigratedId = 0L;
+    private volatile boolean finished;
+    
+    @Autowired
+    public FileCiphertextMigration(FileRepository fileRepository,
+                                   FileService fileService,
+                                   @Value("${encryption.binary-storage.migrate:false}") boolean migrate) {
+        this.fileRepository = fileRepository;
+        this.fileService = fileService;
+        this.migrate = migrate;
+    }
+    
+    /**
+     * Convert the next batch of Base64 files to binary envelopes
+     */
+    @Scheduled(fixedDelayString = "${encryption.binary-storage.migrate-interval:10000}")
+    public void migrateBatch() {
+        if (!migrate || finished) {
+            return;
+        }
+        
+        List<SharedFile> batch = fileRepository.findBase64EncryptedFiles(lastMigratedId, PageRequest.of(0, BATCH_SIZE));
+        if (batch.isEmpty()) {
+            finished = true;
+            return;
+        }
+        
+        for (SharedFile sharedFile : batch) {
+            fileService.convertToEnvelope(sharedFile);
+            lastMigratedId = sharedFile.getId();
+        }
+    }
+}
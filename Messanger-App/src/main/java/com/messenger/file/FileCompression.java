@@ -0,0 +1,76 @@
+package com.messenger.file;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of stored file content.
+ *
+ * Only formats that are not compressed already are worth it: plain text,
+ * PDF and the old binary Office formats. The XML Office formats (docx,
+ * xlsx, pptx) are ZIP archives and images are compressed by their format,
+ * so compressing them again only costs CPU. GZIP at its fastest level keeps
+ * the cost at write time low; it is also an encoding every HTTP client
+ * accepts, so compressed files can be sent as they are stored.
+ */
+@Component
+public class FileCompression {
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final boolean enabled;
+    private final Set<String> extensions;
+    
+    @Autowired
+    public FileCompression(@Value("${file.compression.enabled:true}") boolean enabled,
+                           @Value("${file.compression.extensions:txt,pdf,doc,xls,ppt}") String extensions) {
+        this.enabled = enabled;
+        this.extensions = Stream.of(extensions.split(","))
+                .map(String::trim)
+                .map(String::toLowerCase)
+                .filter(extension -> !extension.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+    }
+    
+    /**
+     * Check whether new files with an extension should be stored compressed
+     * @param extension File extension
+     * @return true if the content should be compressed
+     */
+    public boolean shouldCompress(String extension) {
+        return enabled && extension != null && extensions.contains(extension.toLowerCase());
+    }
+    
+    /**
+     * Wrap a stream so that what is written to it is compressed
+     * @param out Stream to write compressed content to
+     * @return Compressing stream; closing it closes out
+     */
+    public OutputStream compressingStream(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+    }
+    
+    /**
+     * Wrap a stream of compressed content so that it reads as the original
+     * @param in Stream of compressed content
+     * @return Decompressing stream; closing it closes in
+     */
+    public InputStream decompressingStream(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+}
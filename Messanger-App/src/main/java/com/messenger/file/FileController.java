@@ -1,14 +1,21 @@
 package com.messenger.file;
 
+import com.messenger.user.User;
+import com.messenger.user.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.Valid;
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Controller for file operations
@@ -17,11 +24,28 @@ import java.util.List;
 @RequestMapping("/api/files")
 public class FileController {
     
+    private static final int MAX_PAGE_SIZE = 200;
+    
     private final FileService fileService;
+    private final FileDownloadService fileDownloadService;
+    private final ImageVariantService imageVariantService;
+    private final StorageQuotaService storageQuotaService;
+    private final StreamingUploadService streamingUploadService;
+    private final FileArchiveService fileArchiveService;
+    private final UserService userService;
     
     @Autowired
-    public FileController(FileService fileService) {
+    public FileController(FileService fileService, FileDownloadService fileDownloadService,
+                          ImageVariantService imageVariantService, StorageQuotaService storageQuotaService,
+                          StreamingUploadService streamingUploadService, FileArchiveService fileArchiveService,
+                          UserService userService) {
         this.fileService = fileService;
+        this.fileDownloadService = fileDownloadService;
+        this.imageVariantService = imageVariantService;
+        this.storageQuotaService = storageQuotaService;
+        this.streamingUploadService = streamingUploadService;
+        this.fileArchiveService = fileArchiveService;
+        this.userService = userService;
     }
     
     /**
@@ -31,37 +55,144 @@ public class FileController {
      * @param recipientId Recipient ID
      * @param encrypt Whether to encrypt the file
      * @param encryptionKey Encryption key (if encrypt is true)
-     * @return The uploaded file entity
+     * @return The uploaded file entity, or 413 if the sender is over quota
      */
     @PostMapping("/upload")
-    public ResponseEntity<SharedFile> uploadFile(
+    public ResponseEntity<?> uploadFile(
             @RequestParam("file") MultipartFile file,
             @RequestParam("senderId") Long senderId,
             @RequestParam("recipientId") Long recipientId,
             @RequestParam(value = "encrypt", defaultValue = "false") boolean encrypt,
             @RequestParam(value = "encryptionKey", required = false) String encryptionKey) {
         
-        SharedFile sharedFile = fileService.storeFile(file, senderId, recipientId, encrypt, encryptionKey);
+        SharedFile sharedFile;
+        try {
+            sharedFile = fileService.storeFile(file, senderId, recipientId, encrypt, encryptionKey);
+        } catch (QuotaExceededException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(Map.of("error", e.getMessage()));
+        }
+        imageVariantService.generateVariantsAsync(sharedFile);
         return ResponseEntity.ok(sharedFile);
     }
     
     /**
-     * Download a file
+     * Upload a file from a multipart body that is parsed while it arrives,
+     * so the file is written once, straight into storage. The form fields
+     * recipientId, encrypt and encryptionKey must come before the file part.
+     * @param request Servlet request with the multipart body
+     * @param authentication Current user's authentication; the current user is the sender
+     * @return The uploaded file entity or error
+     */
+    @PostMapping("/upload/stream")
+    public ResponseEntity<?> uploadFileStream(HttpServletRequest request, Authentication authentication)
+            throws IOException {
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        SharedFile sharedFile;
+        try {
+            sharedFile = streamingUploadService.upload(request, currentUser.getId());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (QuotaExceededException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(Map.of("error", e.getMessage()));
+        }
+        imageVariantService.generateVariantsAsync(sharedFile);
+        return ResponseEntity.ok(sharedFile);
+    }
+    
+    /**
+     * Get the current user's storage usage and quota
+     * @param authentication Current user's authentication
+     * @return Used bytes, file count and quota
+     */
+    @GetMapping("/usage")
+    public ResponseEntity<?> getStorageUsage(Authentication authentication) {
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        StorageUsage usage = storageQuotaService.getUsage(currentUser.getId());
+        return ResponseEntity.ok(Map.of(
+                "usedBytes", usage.getUsedBytes(),
+                "fileCount", usage.getFileCount(),
+                "quotaBytes", storageQuotaService.getQuotaBytes()));
+    }
+    
+    /**
+     * Download a file. Supports single and multiple byte ranges via the Range header.
+     * Images can be fetched as a resized variant; until the variant has been
+     * generated the original is returned.
      * @param fileId File ID
      * @param decryptionKey Decryption key (if file is encrypted)
-     * @return The file resource
+     * @param variant Image variant: thumbnail or screen (optional)
+     * @param range Range header (optional)
+     * @param request Servlet request
+     * @param response Servlet response
      */
     @GetMapping("/download/{fileId}")
-    public ResponseEntity<Resource> downloadFile(
+    public void downloadFile(
             @PathVariable Long fileId,
-            @RequestParam(value = "decryptionKey", required = false) String decryptionKey) {
+            @RequestParam(value = "decryptionKey", required = false) String decryptionKey,
+            @RequestParam(value = "variant", required = false) String variant,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
         
-        Resource resource = fileService.loadFileAsResource(fileId, decryptionKey);
+        SharedFile sharedFile = fileService.getFile(fileId);
+        if (variant != null) {
+            ImageVariantService.Variant requested;
+            try {
+                requested = ImageVariantService.Variant.fromParameter(variant);
+            } catch (IllegalArgumentException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            
+            String variantKey = imageVariantService.findVariant(sharedFile, requested);
+            if (variantKey != null) {
+                fileDownloadService.writeVariant(sharedFile, variantKey, range, request, response);
+                return;
+            }
+        }
+        fileDownloadService.writeFile(sharedFile, decryptionKey, range, request, response);
+    }
+    
+    /**
+     * Download several files as one ZIP archive, streamed as it is built.
+     * Encrypted files are decrypted with the keys given for them.
+     * @param request File IDs and decryption keys
+     * @param authentication Current user's authentication
+     * @param response Servlet response
+     */
+    @PostMapping("/archive")
+    public void downloadArchive(@Valid @RequestBody ArchiveRequest request,
+                                Authentication authentication,
+                                HttpServletResponse response) throws IOException {
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        List<FileArchiveService.ArchiveEntry> entries;
+        try {
+            entries = fileArchiveService.prepare(currentUser.getId(), request);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
         
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + resource.getFilename() + "\"")
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .body(resource);
+        response.setContentType("application/zip");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"files.zip\"");
+        fileArchiveService.writeArchive(entries, response.getOutputStream());
+    }
+    
+    /**
+     * Delete a file sent by the current user
+     * @param fileId File ID
+     * @param authentication Current user's authentication
+     * @return Empty response
+     */
+    @DeleteMapping("/{fileId}")
+    public ResponseEntity<?> deleteFile(@PathVariable Long fileId, Authentication authentication) {
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        try {
+            fileService.deleteFile(fileId, currentUser.getId());
+            return ResponseEntity.noContent().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
     }
     
     /**
@@ -79,6 +210,36 @@ public class FileController {
         return ResponseEntity.ok(files);
     }
     
+    /**
+     * Get a page of the files shared between the current user and another
+     * user in either direction, newest first
+     * @param otherUserId Other user ID
+     * @param category Optional category filter (image, document or other)
+     * @param cursor Cursor returned with the previous page
+     * @param limit Maximum number of files
+     * @param authentication Current user's authentication
+     * @return File page or error
+     */
+    @GetMapping("/conversation/{otherUserId}")
+    public ResponseEntity<?> getConversationFiles(
+            @PathVariable Long otherUserId,
+            @RequestParam(value = "category", required = false) String category,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "limit", defaultValue = "50") int limit,
+            Authentication authentication) {
+        
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        
+        try {
+            SharedFile.Category filter = category == null ? null : SharedFile.Category.valueOf(category.toUpperCase());
+            int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+            return ResponseEntity.ok(
+                    fileService.getConversationFiles(currentUser.getId(), otherUserId, filter, cursor, pageSize));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+    
     /**
      * Get files sent by a user
      * @param userId User ID
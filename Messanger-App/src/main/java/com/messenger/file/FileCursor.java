@@ -0,0 +1,71 @@
+package com.messenger.file;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Opaque keyset cursor marking a position in a file listing.
+ * Listings are ordered by upload time, then ID, both descending.
+ */
+public class FileCursor {
+    
+    // Before every real upload time, so the first page starts at the newest file
+    private static final LocalDateTime FAR_FUTURE = LocalDateTime.of(9999, 12, 31, 0, 0);
+    
+    public static final FileCursor START = new FileCursor(FAR_FUTURE, Long.MAX_VALUE);
+    
+    private final LocalDateTime uploadTime;
+    private final long id;
+    
+    public FileCursor(LocalDateTime uploadTime, long id) {
+        this.uploadTime = uploadTime;
+        this.id = id;
+    }
+    
+    /**
+     * Cursor positioned at a file; the next page starts after it
+     * @param sharedFile Last file of the current page
+     * @return Cursor
+     */
+    public static FileCursor after(SharedFile sharedFile) {
+        return new FileCursor(sharedFile.getUploadTime(), sharedFile.getId());
+    }
+    
+    public LocalDateTime getUploadTime() {
+        return uploadTime;
+    }
+    
+    public long getId() {
+        return id;
+    }
+    
+    /**
+     * Encode the cursor for clients
+     * @return URL-safe cursor string
+     */
+    public String encode() {
+        String raw = uploadTime + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Decode a cursor received from a client
+     * @param encoded Cursor string
+     * @return Cursor
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static FileCursor decode(String encoded) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\\|");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid file cursor");
+            }
+            return new FileCursor(LocalDateTime.parse(parts[0]), Long.parseLong(parts[1]));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid file cursor", e);
+        }
+    }
+}
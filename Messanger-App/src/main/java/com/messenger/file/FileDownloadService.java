@@ -0,0 +1,381 @@
+package com.messenger.file;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Writes file downloads, honouring HTTP Range requests.
+ *
+ * Single ranges of unencrypted files (and of encrypted files fetched without
+ * a key) in a local store are handed to Tomcat's sendfile when the connector
+ * supports it, so the kernel copies them without passing through the JVM.
+ * Everything else, including multipart responses, is copied through the
+ * response stream from the requested offset. Encrypted files are
+ * decrypted from the chunk holding the first requested byte, so a seek near
+ * the end of a large file does not decrypt everything before it, and the
+ * ranges of a multipart response are served in order from a single stream
+ * so derived content is decrypted or decompressed at most once per request.
+ * Compressed files are sent as stored with Content-Encoding: gzip when the
+ * client accepts it and asks for the whole file, and decompressed otherwise.
+ *
+ * Stored content never changes once written, so every response carries a
+ * strong ETag (the content hash, or the file ID for content that is not
+ * deduplicated), the upload time as Last-Modified and an immutable
+ * Cache-Control. Conditional requests are answered with 304 before the
+ * store is touched.
+ */
+@Service
+public class FileDownloadService {
+    
+    // Request attributes understood by Tomcat's NIO connector
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    
+    // Below this size a plain copy is as cheap as setting up sendfile (same threshold as Tomcat's DefaultServlet)
+    private static final long SENDFILE_THRESHOLD = 48 * 1024;
+    
+    private static final String IMMUTABLE = "private, max-age=31536000, immutable";
+    
+    /**
+     * Content derived from the stored bytes, such as decrypted or decompressed content
+     */
+    private interface ContentSource {
+        
+        /**
+         * @param offset Offset into the derived content
+         * @return Stream positioned at offset
+         */
+        InputStream open(long offset) throws IOException;
+    }
+    
+    private final FileService fileService;
+    private final FileStore fileStore;
+    
+    @Autowired
+    public FileDownloadService(FileService fileService, FileStore fileStore) {
+        this.fileService = fileService;
+        this.fileStore = fileStore;
+    }
+    
+    /**
+     * Write a stored file to the response, or the parts of it named by a Range header
+     * @param sharedFile File entity
+     * @param decryptionKey Key for decryption (if file is encrypted)
+     * @param rangeHeader Value of the Range header, or null for the whole file
+     * @param request Servlet request
+     * @param response Servlet response
+     */
+    public void writeFile(SharedFile sharedFile, String decryptionKey, String rangeHeader,
+                          HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean decrypt = sharedFile.isEncrypted() && decryptionKey != null;
+        boolean compressed = sharedFile.getCodec() == SharedFile.Codec.GZIP;
+        // Compressed content goes out as stored to clients that take gzip, unless they want a range of it
+        boolean passThrough = compressed && rangeHeader == null && acceptsGzip(request);
+        if (compressed) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        
+        // Decrypted, decompressed and raw bytes are different representations
+        String etag = etag(sharedFile, decrypt ? "plain" : passThrough ? "gzip" : null);
+        if (checkNotModified(sharedFile, etag, request, response)) {
+            return;
+        }
+        if (!matchesIfRange(request, etag, lastModified(sharedFile))) {
+            // The client's partial copy is of something else, so send the whole file
+            rangeHeader = null;
+        }
+        
+        String key = sharedFile.getPath();
+        if (!fileStore.exists(key)) {
+            throw new RuntimeException("File not found: " + key);
+        }
+        
+        ContentSource source = null;
+        long length = fileStore.size(key);
+        if (decrypt) {
+            source = offset -> fileService.openDecryptedStream(sharedFile, decryptionKey, offset);
+            length = sharedFile.getSize();
+        } else if (passThrough) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        } else if (compressed) {
+            source = offset -> fileService.openContentStream(sharedFile, offset);
+            length = sharedFile.getSize();
+        }
+        
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + sharedFile.getFilename() + "\"");
+        write(key, source, length, MediaType.APPLICATION_OCTET_STREAM_VALUE, rangeHeader, request, response);
+    }
+    
+    /**
+     * Write a generated image variant
+     * @param sharedFile File the variant was generated from
+     * @param variantKey Storage key of the variant
+     * @param rangeHeader Value of the Range header, or null for the whole variant
+     * @param request Servlet request
+     * @param response Servlet response
+     */
+    public void writeVariant(SharedFile sharedFile, String variantKey, String rangeHeader,
+                             HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String etag = etag(sharedFile, variantKey.substring(sharedFile.getPath().length() + 1));
+        if (checkNotModified(sharedFile, etag, request, response)) {
+            return;
+        }
+        if (!matchesIfRange(request, etag, lastModified(sharedFile))) {
+            rangeHeader = null;
+        }
+        
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + sharedFile.getFilename() + "\"");
+        write(variantKey, null, fileStore.size(variantKey), MediaType.IMAGE_JPEG_VALUE, rangeHeader, request, response);
+    }
+    
+    /**
+     * Set the validators and caching headers for a representation of a file,
+     * and answer conditional requests that the client's copy still satisfies
+     * @param sharedFile File entity
+     * @param etag ETag of the representation
+     * @return true if a 304 (or 412) response was sent and nothing more should be written
+     */
+    private boolean checkNotModified(SharedFile sharedFile, String etag,
+                                     HttpServletRequest request, HttpServletResponse response) {
+        response.setHeader(HttpHeaders.CACHE_CONTROL, IMMUTABLE);
+        return new ServletWebRequest(request, response).checkNotModified(etag, lastModified(sharedFile));
+    }
+    
+    /**
+     * Strong ETag of a representation of a file
+     * @param sharedFile File entity
+     * @param representation Qualifier for representations other than the stored bytes, or null
+     * @return Quoted ETag
+     */
+    private static String etag(SharedFile sharedFile, String representation) {
+        String base = sharedFile.getBlobSha256() != null ? sharedFile.getBlobSha256() : "file-" + sharedFile.getId();
+        return "\"" + (representation == null ? base : base + "-" + representation) + "\"";
+    }
+    
+    private static long lastModified(SharedFile sharedFile) {
+        LocalDateTime uploadTime = sharedFile.getUploadTime();
+        return uploadTime == null ? -1 : uploadTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+    
+    /**
+     * Whether the Accept-Encoding headers allow a gzip-coded response
+     */
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        Enumeration<String> values = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+        while (values != null && values.hasMoreElements()) {
+            for (String coding : values.nextElement().split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                    // gzip;q=0 means the client refuses it
+                    return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Check an If-Range precondition, which must be a strong ETag or an exact date
+     */
+    private static boolean matchesIfRange(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            long date = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return date >= 0 && lastModified >= 0 && date / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Write stored content, or the ranges of it named by a Range header
+     * @param key Storage key
+     * @param source Source of transformed content, or null to send the stored bytes
+     * @param length Length of the content sent
+     */
+    private void write(String key, ContentSource source, long length, String contentType, String rangeHeader,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        
+        List<HttpRange> ranges = parseRanges(rangeHeader, length);
+        if (ranges == null) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return;
+        }
+        
+        if (ranges.isEmpty()) {
+            writeRegion(key, source, 0, length, contentType, request, response);
+        } else if (ranges.size() == 1) {
+            long start = ranges.get(0).getRangeStart(length);
+            long end = ranges.get(0).getRangeEnd(length);
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            writeRegion(key, source, start, end - start + 1, contentType, request, response);
+        } else {
+            writeMultipart(key, source, ranges, length, contentType, response);
+        }
+    }
+    
+    /**
+     * Parse a Range header against the length of the content
+     * @return Ranges to serve, an empty list for the whole file, or null if unsatisfiable
+     */
+    private List<HttpRange> parseRanges(String rangeHeader, long length) {
+        if (rangeHeader == null || rangeHeader.isBlank()) {
+            return List.of();
+        }
+        
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        
+        // Reject ranges past the end, and sets of overlapping ranges that add up to more than
+        // the file itself, which would only serve to amplify the response
+        long total = 0;
+        for (HttpRange range : ranges) {
+            try {
+                long start = range.getRangeStart(length);
+                long end = range.getRangeEnd(length);
+                if (start >= length || end < start) {
+                    return null;
+                }
+                total += end - start + 1;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return total > length ? null : ranges;
+    }
+    
+    private void writeRegion(String key, ContentSource source, long start, long count, String contentType,
+                             HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (source != null) {
+            // Open the source before committing headers so a bad key still fails cleanly
+            try (InputStream plain = source.open(start)) {
+                response.setContentType(contentType);
+                response.setContentLengthLong(count);
+                StreamUtils.copyRange(plain, response.getOutputStream(), 0, count - 1);
+            }
+            return;
+        }
+        
+        response.setContentType(contentType);
+        response.setContentLengthLong(count);
+        Path localPath = fileStore.localPath(key);
+        if (localPath != null && count >= SENDFILE_THRESHOLD
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // Leave the body to the connector, which hands the file region to the kernel
+            request.setAttribute(SENDFILE_FILENAME, localPath.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + count);
+            return;
+        }
+        transfer(key, start, count, response.getOutputStream());
+    }
+    
+    private void writeMultipart(String key, ContentSource source, List<HttpRange> ranges, long length,
+                                String contentType, HttpServletResponse response) throws IOException {
+        List<long[]> regions = new ArrayList<>(ranges.size());
+        for (HttpRange range : ranges) {
+            regions.add(new long[] {range.getRangeStart(length), range.getRangeEnd(length)});
+        }
+        if (source != null) {
+            // Derived content is produced from the start of the stream onwards, so serve the ranges
+            // in order from one stream instead of decrypting or decompressing up to each of them
+            regions = coalesce(regions);
+        }
+        
+        // Open the source before committing headers so a bad key still fails cleanly
+        try (InputStream plain = source != null ? source.open(regions.get(0)[0]) : null) {
+            String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setContentType("multipart/byteranges; boundary=" + boundary);
+            
+            OutputStream out = response.getOutputStream();
+            long position = regions.get(0)[0];
+            for (long[] region : regions) {
+                long start = region[0];
+                long end = region[1];
+                String partHeader = "\r\n--" + boundary + "\r\n"
+                        + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                        + HttpHeaders.CONTENT_RANGE + ": bytes " + start + "-" + end + "/" + length + "\r\n\r\n";
+                out.write(partHeader.getBytes(StandardCharsets.US_ASCII));
+                
+                if (plain != null) {
+                    plain.skipNBytes(start - position);
+                    StreamUtils.copyRange(plain, out, 0, end - start);
+                    position = end + 1;
+                } else {
+                    transfer(key, start, end - start + 1, out);
+                }
+            }
+            out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+    
+    /**
+     * Sort byte ranges by their start and merge the ones that overlap or touch,
+     * which RFC 7233 allows for multipart responses
+     * @param regions Inclusive {@code [start, end]} pairs
+     * @return Disjoint ranges in ascending order
+     */
+    private static List<long[]> coalesce(List<long[]> regions) {
+        regions.sort(Comparator.comparingLong(region -> region[0]));
+        List<long[]> merged = new ArrayList<>(regions.size());
+        for (long[] region : regions) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && region[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], region[1]);
+            } else {
+                merged.add(region);
+            }
+        }
+        return merged;
+    }
+    
+    /**
+     * Copy a region of stored content through the response stream. Local
+     * files are opened at the offset, so nothing before it is read.
+     */
+    private void transfer(String key, long start, long count, OutputStream out) throws IOException {
+        try (InputStream in = fileStore.open(key, start)) {
+            if (StreamUtils.copyRange(in, out, 0, count - 1) < count) {
+                throw new IOException("Unexpected end of stored content " + key);
+            }
+        }
+    }
+}
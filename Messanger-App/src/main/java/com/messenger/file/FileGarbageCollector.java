@@ -0,0 +1,286 @@
+package com.messenger.file;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Reclaims storage that no file refers to: content left behind when a
+ * process died between writing it and saving its row, deduplicated content
+ * whose reference count leaked, variants of deleted originals, stale
+ * staging files and upload sessions that were never finished.
+ *
+ * The store is walked incrementally, one batch per run, and each batch is
+ * checked against the database with a single query per table. Work runs on
+ * its own low-priority thread and is paced to a fixed number of files per
+ * second, so a pass over a large store spreads out instead of competing
+ * with downloads for disk. Nothing younger than the grace period is
+ * touched, since it may belong to an upload that has not been saved yet.
+ */
+@Component
+public class FileGarbageCollector {
+    
+    /**
+     * Enum for why storage was reclaimed, used as a metric tag
+     */
+    public enum Reason {
+        ORPHAN, BLOB, STAGING, UPLOAD_SESSION
+    }
+    
+    private final FileStore fileStore;
+    private final FileRepository fileRepository;
+    private final FileBlobRepository fileBlobRepository;
+    private final UploadSessionRepository uploadSessionRepository;
+    private final FileService fileService;
+    private final UploadSessionService uploadSessionService;
+    
+    private final boolean enabled;
+    private final long intervalMillis;
+    private final int batchSize;
+    private final int filesPerSecond;
+    private final Duration gracePeriod;
+    private final Duration uploadSessionTtl;
+    
+    private final Counter scanned;
+    private final Map<Reason, Counter> reclaimedBytes = new EnumMap<>(Reason.class);
+    private final Map<Reason, Counter> reclaimedFiles = new EnumMap<>(Reason.class);
+    
+    private final ScheduledExecutorService executor;
+    
+    // Current pass over the store; only touched from the collector thread
+    private Stream<String> pass;
+    private Iterator<String> keys;
+    
+    @Autowired
+    public FileGarbageCollector(FileStore fileStore,
+                                FileRepository fileRepository,
+                                FileBlobRepository fileBlobRepository,
+                                UploadSessionRepository uploadSessionRepository,
+                                FileService fileService,
+                                UploadSessionService uploadSessionService,
+                                MeterRegistry meterRegistry,
+                                @Value("${file.gc.enabled:true}") boolean enabled,
+                                @Value("${file.gc.interval:10000}") long intervalMillis,
+                                @Value("${file.gc.batch-size:500}") int batchSize,
+                                @Value("${file.gc.files-per-second:100}") int filesPerSecond,
+                                @Value("${file.gc.grace-period:1h}") Duration gracePeriod,
+                                @Value("${file.gc.upload-session-ttl:7d}") Duration uploadSessionTtl) {
+        this.fileStore = fileStore;
+        this.fileRepository = fileRepository;
+        this.fileBlobRepository = fileBlobRepository;
+        this.uploadSessionRepository = uploadSessionRepository;
+        this.fileService = fileService;
+        this.uploadSessionService = uploadSessionService;
+        this.enabled = enabled;
+        this.intervalMillis = intervalMillis;
+        this.batchSize = batchSize;
+        this.filesPerSecond = Math.max(1, filesPerSecond);
+        this.gracePeriod = gracePeriod;
+        this.uploadSessionTtl = uploadSessionTtl;
+        
+        this.scanned = Counter.builder("files.gc.scanned")
+                .description("Stored files checked by the garbage collector")
+                .register(meterRegistry);
+        for (Reason reason : Reason.values()) {
+            String tag = reason.name().toLowerCase();
+            reclaimedBytes.put(reason, Counter.builder("files.gc.reclaimed.bytes")
+                    .description("Bytes of storage reclaimed by the garbage collector")
+                    .baseUnit("bytes")
+                    .tag("reason", tag)
+                    .register(meterRegistry));
+            reclaimedFiles.put(reason, Counter.builder("files.gc.reclaimed.files")
+                    .description("Files deleted by the garbage collector")
+                    .tag("reason", tag)
+                    .register(meterRegistry));
+        }
+        
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "file-gc");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+    
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            executor.scheduleWithFixedDelay(this::collectSafely, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        endPass();
+    }
+    
+    private void collectSafely() {
+        try {
+            collect();
+        } catch (RuntimeException | IOException e) {
+            // Start over on the next run; a half-finished pass is simply repeated
+            endPass();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Check the next batch of stored files. Staging files and idle upload
+     * sessions are cleaned up at the start of every pass.
+     */
+    void collect() throws IOException, InterruptedException {
+        if (keys == null) {
+            expireUploadSessions();
+            sweepStaging();
+            pass = fileStore.listKeys();
+            keys = pass.iterator();
+        }
+        
+        List<String> batch = new ArrayList<>(batchSize);
+        try {
+            while (batch.size() < batchSize && keys.hasNext()) {
+                batch.add(keys.next());
+            }
+        } catch (UncheckedIOException e) {
+            // A directory vanished under the walk; what was read so far is still good
+            endPass();
+        }
+        if (batch.isEmpty()) {
+            endPass();
+            return;
+        }
+        
+        long started = System.nanoTime();
+        reconcile(batch);
+        scanned.increment(batch.size());
+        
+        // Pace the pass: a batch may not take less time than its share of the rate
+        long budgetNanos = TimeUnit.SECONDS.toNanos(batch.size()) / filesPerSecond;
+        long remainingNanos = budgetNanos - (System.nanoTime() - started);
+        if (remainingNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(remainingNanos);
+        }
+    }
+    
+    /**
+     * Delete the files in a batch that nothing refers to
+     * @param batch Storage keys
+     */
+    private void reconcile(List<String> batch) throws IOException {
+        // Variants belong to their original, so they live and die with it
+        Map<String, String> owners = new HashMap<>();
+        for (String key : batch) {
+            String original = ImageVariantService.Variant.originalKeyOf(key);
+            owners.put(key, original != null ? original : key);
+        }
+        
+        Set<String> referenced = new HashSet<>(fileRepository.findExistingPaths(owners.values()));
+        Map<String, FileBlob> blobs = new HashMap<>();
+        for (FileBlob blob : fileBlobRepository.findByPathIn(owners.values())) {
+            blobs.put(blob.getPath(), blob);
+        }
+        
+        Instant cutoff = Instant.now().minus(gracePeriod);
+        for (String key : batch) {
+            String owner = owners.get(key);
+            if (referenced.contains(owner) || !fileStore.exists(key)
+                    || fileStore.lastModified(key).isAfter(cutoff)) {
+                continue;
+            }
+            
+            long size = fileStore.size(key);
+            FileBlob blob = blobs.get(owner);
+            if (blob == null) {
+                fileStore.delete(key);
+                record(Reason.ORPHAN, size);
+            } else if (owner.equals(key)
+                    && fileService.reclaimOrphanedBlob(blob, LocalDateTime.now().minus(gracePeriod))) {
+                record(Reason.BLOB, size);
+            }
+        }
+    }
+    
+    /**
+     * Delete staging files left by interrupted uploads and variant generation.
+     * Partial files of live upload sessions are kept; those sessions expire on their own.
+     */
+    private void sweepStaging() throws IOException {
+        Instant cutoff = Instant.now().minus(gracePeriod);
+        List<Path> stale = new ArrayList<>();
+        try (Stream<Path> files = fileStore.listStagingFiles()) {
+            files.forEach(file -> {
+                try {
+                    if (Files.getLastModifiedTime(file).toInstant().isBefore(cutoff)) {
+                        stale.add(file);
+                    }
+                } catch (IOException e) {
+                    // Deleted while listing
+                }
+            });
+        }
+        
+        for (Path file : stale) {
+            String sessionId = UploadSessionService.sessionIdOf(file.getFileName().toString());
+            if (sessionId != null && uploadSessionRepository.existsById(sessionId)) {
+                continue;
+            }
+            try {
+                long size = Files.size(file);
+                if (Files.deleteIfExists(file)) {
+                    record(Reason.STAGING, size);
+                }
+            } catch (IOException e) {
+                // Committed or deleted since it was listed
+            }
+        }
+    }
+    
+    private void expireUploadSessions() {
+        LocalDateTime idleSince = LocalDateTime.now().minus(uploadSessionTtl);
+        for (UploadSession session : uploadSessionRepository.findTop100ByUpdatedAtBeforeOrderByUpdatedAtAsc(idleSince)) {
+            long size = uploadSessionService.expireSession(session.getId(), idleSince);
+            if (size >= 0) {
+                record(Reason.UPLOAD_SESSION, size);
+            }
+        }
+    }
+    
+    private void record(Reason reason, long bytes) {
+        reclaimedBytes.get(reason).increment(bytes);
+        reclaimedFiles.get(reason).increment();
+    }
+    
+    private void endPass() {
+        if (pass != null) {
+            pass.close();
+        }
+        pass = null;
+        keys = null;
+    }
+}
@@ -0,0 +1,22 @@
+package com.messenger.file;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * A page of shared files, newest first
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FilePage {
+    private List<SharedFile> files;
+    
+    /**
+     * Cursor for the next (older) page, or null when there are no more files
+     */
+    private String nextCursor;
+}
@@ -1,8 +1,15 @@
 package com.messenger.file;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -19,6 +26,88 @@ public interface FileRepository extends JpaRepository<SharedFile, Long> {
      */
     List<SharedFile> findBySenderIdAndRecipientIdOrderByUploadTimeDesc(Long senderId, Long recipientId);
     
+    /**
+     * Find all files shared between two users in either direction, newest first
+     * @param user1Id First user ID
+     * @param user2Id Second user ID
+     * @return List of shared files
+     */
+    @Query("SELECT f FROM SharedFile f WHERE (f.senderId = :user1Id AND f.recipientId = :user2Id) " +
+            "OR (f.senderId = :user2Id AND f.recipientId = :user1Id) " +
+            "ORDER BY f.uploadTime DESC, f.id DESC")
+    List<SharedFile> findBetweenUsers(@Param("user1Id") Long user1Id, @Param("user2Id") Long user2Id);
+    
+    /**
+     * Find a page of files sent from one user to another, newest first,
+     * strictly before an (upload time, id) position
+     * @param senderId Sender ID
+     * @param recipientId Recipient ID
+     * @param before Upload time of the position
+     * @param beforeId ID of the position among files with the same upload time
+     * @param pageable Page size
+     * @return List of shared files
+     */
+    @Query("SELECT f FROM SharedFile f WHERE f.senderId = :senderId AND f.recipientId = :recipientId " +
+            "AND f.uploadTime <= :before AND (f.uploadTime < :before OR f.id < :beforeId) " +
+            "ORDER BY f.uploadTime DESC, f.id DESC")
+    List<SharedFile> findPageBySenderAndRecipient(@Param("senderId") Long senderId,
+                                                  @Param("recipientId") Long recipientId,
+                                                  @Param("before") LocalDateTime before,
+                                                  @Param("beforeId") Long beforeId,
+                                                  Pageable pageable);
+    
+    /**
+     * Find a page of files of one category sent from one user to another,
+     * newest first, strictly before an (upload time, id) position
+     * @param senderId Sender ID
+     * @param recipientId Recipient ID
+     * @param category File category
+     * @param before Upload time of the position
+     * @param beforeId ID of the position among files with the same upload time
+     * @param pageable Page size
+     * @return List of shared files
+     */
+    @Query("SELECT f FROM SharedFile f WHERE f.senderId = :senderId AND f.recipientId = :recipientId " +
+            "AND f.category = :category " +
+            "AND f.uploadTime <= :before AND (f.uploadTime < :before OR f.id < :beforeId) " +
+            "ORDER BY f.uploadTime DESC, f.id DESC")
+    List<SharedFile> findPageBySenderAndRecipientAndCategory(@Param("senderId") Long senderId,
+                                                             @Param("recipientId") Long recipientId,
+                                                             @Param("category") SharedFile.Category category,
+                                                             @Param("before") LocalDateTime before,
+                                                             @Param("beforeId") Long beforeId,
+                                                             Pageable pageable);
+    
+    /**
+     * Set the category of files stored before categories existed
+     * @param category Category to assign
+     * @param suffix Lower-case filename suffix, such as ".pdf"
+     * @return Number of updated rows
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE SharedFile f SET f.category = :category " +
+            "WHERE f.category IS NULL AND LOWER(f.filename) LIKE CONCAT('%', :suffix)")
+    int backfillCategory(@Param("category") SharedFile.Category category, @Param("suffix") String suffix);
+    
+    /**
+     * Set the category of all files that are still uncategorised
+     * @param category Category to assign
+     * @return Number of updated rows
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE SharedFile f SET f.category = :category WHERE f.category IS NULL")
+    int backfillRemainingCategories(@Param("category") SharedFile.Category category);
+    
+    /**
+     * Find which of a set of stored names are referenced by a file
+     * @param paths Stored names
+     * @return The referenced names
+     */
+    @Query("SELECT DISTINCT f.path FROM SharedFile f WHERE f.path IN :paths")
+    List<String> findExistingPaths(@Param("paths") Collection<String> paths);
+    
     /**
      * Find all files sent by a user
      * @param senderId Sender ID
@@ -32,4 +121,15 @@ public interface FileRepository extends JpaRepository<SharedFile, Long> {
      * @return List of shared files
      */
     List<SharedFile> findByRecipientIdOrderByUploadTimeDesc(Long recipientId);
+    
+    /**
+     * Find encrypted files still stored as Base64 text, in ID order
+     * @param afterId Only files with a greater ID are returned
+     * @param pageable Batch size
+     * @return Next batch of files to migrate
+     */
+    @Query("SELECT f FROM SharedFile f WHERE f.encrypted = true " +
+            "AND (f.cipherFormat IS NULL OR f.cipherFormat = 'BASE64') " +
+            "AND f.id > :afterId ORDER BY f.id ASC")
+    List<SharedFile> findBase64EncryptedFiles(@Param("afterId") Long afterId, Pageable pageable);
 }
@@ -1,24 +1,40 @@
 package com.messenger.file;
 
+import com.messenger.encryption.ChunkedFileCipher;
+import com.messenger.encryption.CiphertextEnvelope;
 import com.messenger.encryption.EncryptionService;
 import org.apache.commons.io.FilenameUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 /**
  * Service for handling file operations
@@ -26,22 +42,31 @@ import java.util.UUID;
 @Service
 public class FileService {
     
-    private final Path fileStorageLocation;
+    private final FileStore fileStore;
     private final FileRepository fileRepository;
+    private final FileBlobRepository fileBlobRepository;
+    private final StorageQuotaService storageQuotaService;
+    private final FileCompression fileCompression;
     private final EncryptionService encryptionService;
+    private final TransactionTemplate transactionTemplate;
+    private final long maxFileSize;
     
     @Autowired
-    public FileService(FileRepository fileRepository,
-                      @Value("${file.upload.directory}") String uploadDir) {
+    public FileService(FileStore fileStore,
+                      FileRepository fileRepository,
+                      FileBlobRepository fileBlobRepository,
+                      StorageQuotaService storageQuotaService,
+                      FileCompression fileCompression,
+                      PlatformTransactionManager transactionManager,
+                      @Value("${file.upload.max-size:10MB}") DataSize maxFileSize) {
+        this.fileStore = fileStore;
         this.fileRepository = fileRepository;
-        this.fileStorageLocation = Paths.get(uploadDir).toAbsolutePath().normalize();
+        this.fileBlobRepository = fileBlobRepository;
+        this.storageQuotaService = storageQuotaService;
+        this.fileCompression = fileCompression;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxFileSize = maxFileSize.toBytes();
         this.encryptionService = new EncryptionService();
-        
-        try {
-            Files.createDirectories(this.fileStorageLocation);
-        } catch (IOException ex) {
-            throw new RuntimeException("Could not create the directory for file storage", ex);
-        }
     }
     
     /**
@@ -52,6 +77,7 @@ public class FileService {
      * @param encryptFile Whether to encrypt the file
      * @param encryptionKey Encryption key
      * @return Stored file entity
+     * @throws QuotaExceededException if the file does not fit in the sender's quota
      */
     public SharedFile storeFile(MultipartFile file, Long senderId, Long recipientId, 
                               boolean encryptFile, String encryptionKey) {
@@ -65,33 +91,125 @@ public class FileService {
                 throw new RuntimeException("File type not allowed: " + extension);
             }
             
-            // Check if the file size is within limits (10MB)
-            if (file.getSize() > 10 * 1024 * 1024) {
-                throw new RuntimeException("File exceeds maximum size of 10MB");
+            // Check if the file size is within limits
+            if (file.getSize() > maxFileSize) {
+                throw new RuntimeException("File exceeds maximum size of " + DataSize.ofBytes(maxFileSize).toMegabytes() + "MB");
             }
             
+            try (InputStream inputStream = file.getInputStream()) {
+                return storeContent(inputStream, filename, extension, file.getContentType(), file.getSize(),
+                        senderId, recipientId, encryptFile, encryptionKey);
+            }
+        } catch (QuotaExceededException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not store the file", ex);
+        } catch (Exception ex) {
+            throw new RuntimeException("An error occurred during file processing", ex);
+        }
+    }
+    
+    /**
+     * Store a file read straight from a request body, whose size is only
+     * known once it has been read. The extension is checked before the first
+     * byte is read and the size while reading, so a disallowed or oversized
+     * upload is cut off without being written out in full.
+     * @param content File content
+     * @param originalFilename Filename given by the client
+     * @param contentType Content type given by the client
+     * @param maxExpectedSize Upper bound on the size known in advance, such as the request length, or -1
+     * @param senderId Sender ID
+     * @param recipientId Recipient ID
+     * @param encryptFile Whether to encrypt the file
+     * @param encryptionKey Encryption key
+     * @return Stored file entity
+     * @throws IllegalArgumentException if the file type is not allowed or the file is too large
+     * @throws QuotaExceededException if the file may not fit in the sender's quota
+     */
+    public SharedFile storeFileStream(InputStream content, String originalFilename, String contentType,
+                                      long maxExpectedSize, Long senderId, Long recipientId,
+                                      boolean encryptFile, String encryptionKey) {
+        String filename = StringUtils.cleanPath(originalFilename != null ? originalFilename : "");
+        String extension = FilenameUtils.getExtension(filename);
+        if (!isSupportedExtension(extension)) {
+            throw new IllegalArgumentException("File type not allowed: " + extension);
+        }
+        
+        // Reserve for the largest the file can turn out to be; the excess is given back once it is stored
+        long reservation = maxExpectedSize >= 0 ? Math.min(maxExpectedSize, maxFileSize) : maxFileSize;
+        try {
+            return storeContent(content, filename, extension, contentType, reservation,
+                    senderId, recipientId, encryptFile, encryptionKey);
+        } catch (QuotaExceededException | IllegalArgumentException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not store the file", ex);
+        } catch (Exception ex) {
+            throw new RuntimeException("An error occurred during file processing", ex);
+        }
+    }
+    
+    /**
+     * Write content to the store in a single pass and save its entity.
+     * Quota is reserved before anything is written and released again if
+     * the file is not stored.
+     */
+    private SharedFile storeContent(InputStream content, String filename, String extension, String contentType,
+                                    long reservation, Long senderId, Long recipientId,
+                                    boolean encryptFile, String encryptionKey) throws Exception {
+        // Admit the upload against the sender's quota before writing anything
+        storageQuotaService.reserve(senderId, reservation);
+        long charged = reservation;
+        try {
+            SizeLimitedInputStream inputStream = new SizeLimitedInputStream(content, Math.min(reservation, maxFileSize),
+                    "File exceeds maximum size of " + DataSize.ofBytes(maxFileSize).toMegabytes() + "MB");
+            // Checksummed on the way in, so archives can store the file without reading it twice
+            CheckedInputStream plain = new CheckedInputStream(inputStream, new CRC32());
+            
             // Generate a unique filename to prevent overwriting
             String uniqueFilename = UUID.randomUUID().toString() + "." + extension;
-            Path targetLocation = this.fileStorageLocation.resolve(uniqueFilename);
+            String storedName = fileStore.keyFor(uniqueFilename);
+            String blobSha256 = null;
             
-            // If encryption is requested, encrypt the file before saving
-            if (encryptFile && encryptionKey != null) {
-                try (InputStream inputStream = file.getInputStream()) {
-                    // Read the file content
-                    byte[] content = inputStream.readAllBytes();
-                    
-                    // Convert to string for encryption (in production, use a more robust approach for binary files)
-                    String contentStr = new String(content);
-                    String encrypted = encryptionService.encrypt(contentStr, encryptionKey);
-                    
-                    // Write the encrypted content
-                    Files.write(targetLocation, encrypted.getBytes());
-                }
-            } else {
-                // For unencrypted files, simply copy
-                try (InputStream inputStream = file.getInputStream()) {
-                    Files.copy(inputStream, targetLocation, StandardCopyOption.REPLACE_EXISTING);
+            // Content is written to a staging file and only published once complete
+            Path stagingFile = fileStore.stagingPath("upload_" + uniqueFilename);
+            SharedFile.CipherFormat cipherFormat = null;
+            SharedFile.Codec codec = null;
+            try {
+                if (encryptFile && encryptionKey != null) {
+                    // Encrypt chunk by chunk straight from the upload to disk, so memory
+                    // use stays at one chunk whatever the file size
+                    try (OutputStream outputStream = Files.newOutputStream(stagingFile)) {
+                        ChunkedFileCipher.encrypt(plain, outputStream, ChunkedFileCipher.keyFromBase64(encryptionKey));
+                    }
+                    fileStore.commit(stagingFile, storedName);
+                    cipherFormat = SharedFile.CipherFormat.CHUNKED;
+                } else if (!encryptFile) {
+                    // Unencrypted content is hashed while it is copied and stored once however often it is shared
+                    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                    if (fileCompression.shouldCompress(extension)) {
+                        try (OutputStream outputStream = fileCompression.compressingStream(Files.newOutputStream(stagingFile))) {
+                            new DigestInputStream(plain, digest).transferTo(outputStream);
+                        }
+                        codec = SharedFile.Codec.GZIP;
+                    } else {
+                        Files.copy(new DigestInputStream(plain, digest), stagingFile, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    blobSha256 = SharedFile.blobId(HexFormat.of().formatHex(digest.digest()), codec);
+                    storedName = storeBlob(stagingFile, blobSha256, Files.size(stagingFile));
+                } else {
+                    // Encryption was asked for without a key; keep the file to itself
+                    Files.copy(plain, stagingFile, StandardCopyOption.REPLACE_EXISTING);
+                    fileStore.commit(stagingFile, storedName);
                 }
+            } finally {
+                Files.deleteIfExists(stagingFile);
+            }
+            
+            long size = inputStream.getCount();
+            if (size < reservation) {
+                storageQuotaService.shrink(senderId, reservation - size);
+                charged = size;
             }
             
             // Create and save the file entity
@@ -99,19 +217,147 @@ public class FileService {
             sharedFile.setSenderId(senderId);
             sharedFile.setRecipientId(recipientId);
             sharedFile.setFilename(filename);
-            sharedFile.setPath(uniqueFilename);
-            sharedFile.setContentType(file.getContentType());
-            sharedFile.setSize(file.getSize());
+            sharedFile.setPath(storedName);
+            sharedFile.setContentType(contentType);
+            sharedFile.setSize(size);
+            sharedFile.setCategory(SharedFile.Category.forExtension(extension));
             sharedFile.setEncrypted(encryptFile);
+            sharedFile.setCipherFormat(cipherFormat);
+            sharedFile.setCodec(codec);
+            sharedFile.setCrc32(plain.getChecksum().getValue());
+            sharedFile.setBlobSha256(blobSha256);
             
+            return saveReferencingBlob(sharedFile);
+        } catch (Exception ex) {
+            storageQuotaService.release(senderId, charged);
+            throw ex;
+        }
+    }
+    
+    /**
+     * Move freshly written content into the deduplicated store and take a
+     * reference to it. If the same content is already stored, the new copy
+     * is simply dropped.
+     * @param stagingFile Content written to a staging file
+     * @param sha256 SHA-256 of the content
+     * @param size Content size
+     * @return Storage key of the content
+     */
+    String storeBlob(Path stagingFile, String sha256, long size) throws IOException {
+        // Waits for a concurrent release of the same content to finish deleting it
+        fileBlobRepository.acquire(sha256, fileStore.keyFor(sha256), size);
+        
+        // Content stored before the current layout keeps the key it was stored under
+        String key = fileBlobRepository.findById(sha256)
+                .map(FileBlob::getPath)
+                .orElse(fileStore.keyFor(sha256));
+        try {
+            if (fileStore.exists(key)) {
+                Files.deleteIfExists(stagingFile);
+            } else {
+                fileStore.commit(stagingFile, key);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // The reference is already committed; give it back so the row does not outlive missing content
+            releaseBlob(sha256, key);
+            throw ex;
+        }
+        return key;
+    }
+    
+    /**
+     * Save a new file entity, giving back its blob reference if the save fails
+     * @param sharedFile File entity
+     * @return Saved entity
+     */
+    SharedFile saveReferencingBlob(SharedFile sharedFile) {
+        try {
             return fileRepository.save(sharedFile);
+        } catch (RuntimeException ex) {
+            if (sharedFile.getBlobSha256() != null) {
+                releaseBlob(sharedFile.getBlobSha256(), sharedFile.getPath());
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * Delete a file. Deduplicated content is only removed from disk once
+     * no other file refers to it.
+     * @param fileId File ID
+     * @param userId ID of the user deleting the file
+     */
+    @Transactional
+    public void deleteFile(Long fileId, Long userId) {
+        SharedFile sharedFile = fileRepository.findById(fileId)
+                .orElseThrow(() -> new IllegalArgumentException("File not found with id " + fileId));
+        if (!sharedFile.getSenderId().equals(userId)) {
+            throw new IllegalArgumentException("Only the sender can delete a file");
+        }
+        
+        fileRepository.delete(sharedFile);
+        storageQuotaService.release(sharedFile.getSenderId(), sharedFile.getSize());
+        if (sharedFile.getBlobSha256() != null) {
+            releaseBlob(sharedFile.getBlobSha256(), sharedFile.getPath());
+        } else {
+            deleteStoredFile(sharedFile.getPath());
+        }
+    }
+    
+    /**
+     * Drop a reference to deduplicated content, deleting it when it was the last one.
+     * Releasing, deleting the row and deleting the file run in one transaction
+     * (the caller's, if there is one), so the row stays locked until the file
+     * is gone and a concurrent upload of the same content cannot reuse it in
+     * between. A template rather than @Transactional, which self-invocation
+     * would bypass.
+     */
+    private void releaseBlob(String sha256, String key) {
+        transactionTemplate.executeWithoutResult(status -> {
+            fileBlobRepository.release(sha256);
+            if (fileBlobRepository.deleteIfUnreferenced(sha256) > 0) {
+                deleteStoredFile(key);
+            }
+        });
+    }
+    
+    /**
+     * Delete deduplicated content that no file points at any more, together
+     * with its row. Used to reclaim content whose reference count leaked.
+     * @param blob Content row
+     * @param cutoff Only if no reference was taken after this time
+     * @return true if the content was deleted
+     */
+    @Transactional
+    public boolean reclaimOrphanedBlob(FileBlob blob, LocalDateTime cutoff) {
+        if (fileBlobRepository.deleteIfOrphaned(blob.getSha256(), cutoff) == 0) {
+            return false;
+        }
+        deleteStoredFile(blob.getPath());
+        return true;
+    }
+    
+    private void deleteStoredFile(String key) {
+        try {
+            fileStore.delete(key);
+            for (ImageVariantService.Variant variant : ImageVariantService.Variant.values()) {
+                fileStore.delete(variant.keyFor(key));
+            }
         } catch (IOException ex) {
-            throw new RuntimeException("Could not store the file", ex);
-        } catch (Exception ex) {
-            throw new RuntimeException("An error occurred during file processing", ex);
+            throw new RuntimeException("Could not delete the file", ex);
         }
     }
     
+    /**
+     * Get the metadata of a stored file
+     * @param fileId File ID
+     * @return File entity
+     */
+    public SharedFile getFile(Long fileId) {
+        return fileRepository.findById(fileId)
+                .orElseThrow(() -> new RuntimeException("File not found with id " + fileId));
+    }
+    
     /**
      * Load a file as a Resource
      * @param fileId File ID
@@ -119,46 +365,218 @@ public class FileService {
      * @return Resource for the file
      */
     public Resource loadFileAsResource(Long fileId, String decryptionKey) {
+        return loadFileAsResource(getFile(fileId), decryptionKey);
+    }
+    
+    /**
+     * Load a file as a Resource. Encrypted files are decrypted while the
+     * response is written; plaintext never touches disk.
+     * @param sharedFile File entity
+     * @param decryptionKey Key for decryption (if file is encrypted)
+     * @return Resource for the file
+     */
+    public Resource loadFileAsResource(SharedFile sharedFile, String decryptionKey) {
+        if (!fileStore.exists(sharedFile.getPath())) {
+            throw new RuntimeException("File not found: " + sharedFile.getPath());
+        }
+        
+        // If file is encrypted and decryption key is provided, decrypt it
+        if (sharedFile.isEncrypted() && decryptionKey != null) {
+            if (sharedFile.getCipherFormat() == SharedFile.CipherFormat.CHUNKED) {
+                return new InputStreamResource(openDecryptedStream(sharedFile, decryptionKey, 0));
+            }
+            // Whole-file formats from before chunked encryption are small enough to decrypt in memory
+            return new ByteArrayResource(decryptWholeFile(sharedFile, decryptionKey));
+        }
+        return new InputStreamResource(openContentStream(sharedFile, 0));
+    }
+    
+    /**
+     * Open the content of an unencrypted file as it was uploaded, starting at
+     * a byte offset. Compressed files are decompressed while they are read.
+     * @param sharedFile File entity
+     * @param offset Offset into the uploaded content
+     * @return Stream positioned at offset
+     */
+    public InputStream openContentStream(SharedFile sharedFile, long offset) {
+        InputStream in = null;
         try {
-            SharedFile sharedFile = fileRepository.findById(fileId)
-                    .orElseThrow(() -> new RuntimeException("File not found with id " + fileId));
-            
-            Path filePath = this.fileStorageLocation.resolve(sharedFile.getPath()).normalize();
-            Resource resource = new UrlResource(filePath.toUri());
-            
-            if(resource.exists()) {
-                // If file is encrypted and decryption key is provided, decrypt it
-                if (sharedFile.isEncrypted() && decryptionKey != null) {
-                    try {
-                        String encryptedContent = new String(Files.readAllBytes(filePath));
-                        String decryptedContent = encryptionService.decrypt(encryptedContent, decryptionKey);
-                        
-                        // Create a temporary file for the decrypted content
-                        Path tempFile = Files.createTempFile("decrypted_", "_" + sharedFile.getFilename());
-                        Files.write(tempFile, decryptedContent.getBytes());
-                        
-                        return new UrlResource(tempFile.toUri());
-                    } catch (Exception e) {
-                        throw new RuntimeException("Failed to decrypt file", e);
-                    }
+            if (sharedFile.getCodec() != SharedFile.Codec.GZIP) {
+                return fileStore.open(sharedFile.getPath(), offset);
+            }
+            in = fileCompression.decompressingStream(fileStore.open(sharedFile.getPath(), 0));
+            in.skipNBytes(offset);
+            return in;
+        } catch (IOException ex) {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                    // already failing
                 }
-                return resource;
-            } else {
-                throw new RuntimeException("File not found: " + sharedFile.getPath());
             }
-        } catch (MalformedURLException ex) {
             throw new RuntimeException("File not found", ex);
         }
     }
     
     /**
-     * Get files shared between two users
+     * Open the plaintext of an encrypted file starting at a byte offset.
+     * Chunked files seek straight to the chunk holding the offset, so only
+     * that chunk and the ones after it are read and decrypted. The first
+     * chunk is decrypted up front so a wrong key fails before any response
+     * is sent.
+     * @param sharedFile Encrypted file entity
+     * @param decryptionKey Key for decryption
+     * @param offset Plaintext offset to start from
+     * @return Plaintext stream positioned at offset
+     */
+    public InputStream openDecryptedStream(SharedFile sharedFile, String decryptionKey, long offset) {
+        if (sharedFile.getCipherFormat() != SharedFile.CipherFormat.CHUNKED) {
+            byte[] decryptedContent = decryptWholeFile(sharedFile, decryptionKey);
+            int start = (int) Math.min(offset, decryptedContent.length);
+            return new ByteArrayInputStream(decryptedContent, start, decryptedContent.length - start);
+        }
+        
+        InputStream encrypted = null;
+        try {
+            byte[] header;
+            try (InputStream in = fileStore.open(sharedFile.getPath(), 0)) {
+                header = in.readNBytes(ChunkedFileCipher.HEADER_LENGTH);
+            }
+            ChunkedFileCipher chunkedCipher = ChunkedFileCipher.fromHeader(
+                    header, ChunkedFileCipher.keyFromBase64(decryptionKey));
+            
+            long chunk = offset / chunkedCipher.getChunkSize();
+            encrypted = fileStore.open(sharedFile.getPath(), chunkedCipher.chunkOffset(chunk));
+            PushbackInputStream plain = new PushbackInputStream(chunkedCipher.decryptingStream(encrypted, chunk), 1);
+            plain.skipNBytes(offset % chunkedCipher.getChunkSize());
+            int first = plain.read();
+            if (first != -1) {
+                plain.unread(first);
+            }
+            return plain;
+        } catch (Exception e) {
+            if (encrypted != null) {
+                try {
+                    encrypted.close();
+                } catch (IOException ignored) {
+                    // already failing
+                }
+            }
+            throw new RuntimeException("Failed to decrypt file", e);
+        }
+    }
+    
+    private byte[] decryptWholeFile(SharedFile sharedFile, String decryptionKey) {
+        try {
+            byte[] stored;
+            try (InputStream in = fileStore.open(sharedFile.getPath(), 0)) {
+                stored = in.readAllBytes();
+            }
+            if (sharedFile.getCipherFormat() == SharedFile.CipherFormat.ENVELOPE) {
+                return encryptionService.decryptEnvelope(stored, decryptionKey);
+            }
+            return encryptionService.decrypt(new String(stored), decryptionKey).getBytes();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to decrypt file", e);
+        }
+    }
+    
+    /**
+     * Rewrite a Base64 encrypted file as a binary ciphertext envelope.
+     * The Base64 text already holds IV, ciphertext and tag, so no key is needed.
+     * @param sharedFile File to convert
+     * @return true if the file was converted
+     */
+    boolean convertToEnvelope(SharedFile sharedFile) {
+        if (!sharedFile.isEncrypted()
+                || (sharedFile.getCipherFormat() != null && sharedFile.getCipherFormat() != SharedFile.CipherFormat.BASE64)) {
+            return false;
+        }
+        
+        Path stagingFile = fileStore.stagingPath("convert_" + UUID.randomUUID());
+        try {
+            String base64;
+            try (InputStream in = fileStore.open(sharedFile.getPath(), 0)) {
+                base64 = new String(in.readAllBytes()).trim();
+            }
+            byte[] envelope = CiphertextEnvelope.fromBase64(base64);
+            
+            // Stage and swap atomically so readers never see a partial file
+            Files.write(stagingFile, envelope);
+            fileStore.commit(stagingFile, sharedFile.getPath());
+            
+            sharedFile.setCipherFormat(SharedFile.CipherFormat.ENVELOPE);
+            fileRepository.save(sharedFile);
+            return true;
+        } catch (IOException | IllegalArgumentException ex) {
+            try {
+                Files.deleteIfExists(stagingFile);
+            } catch (IOException ignored) {
+                // left for the staging cleanup
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Get files shared between two users, in both directions
      * @param senderId Sender ID
      * @param recipientId Recipient ID
      * @return List of shared files
      */
     public List<SharedFile> getFilesBetweenUsers(Long senderId, Long recipientId) {
-        return fileRepository.findBySenderIdAndRecipientIdOrderByUploadTimeDesc(senderId, recipientId);
+        return fileRepository.findBetweenUsers(senderId, recipientId);
+    }
+    
+    /**
+     * Get a page of the files shared between two users in either direction,
+     * newest first. Each direction is read from its own index range and the
+     * two are merged, so a page never reads more than limit + 1 rows per side.
+     * @param userId Current user ID
+     * @param otherUserId Other user ID
+     * @param category Only files of this category, or null for all
+     * @param cursor Cursor returned with the previous page, or null for the first page
+     * @param limit Maximum number of files
+     * @return Page of files
+     */
+    public FilePage getConversationFiles(Long userId, Long otherUserId, SharedFile.Category category,
+                                         String cursor, int limit) {
+        FileCursor position = cursor == null || cursor.isBlank() ? FileCursor.START : FileCursor.decode(cursor);
+        
+        List<SharedFile> sent = findPage(userId, otherUserId, category, position, limit + 1);
+        List<SharedFile> received = findPage(otherUserId, userId, category, position, limit + 1);
+        
+        List<SharedFile> files = new ArrayList<>(limit);
+        int i = 0;
+        int j = 0;
+        while (files.size() < limit && (i < sent.size() || j < received.size())) {
+            if (j >= received.size() || (i < sent.size() && isNewer(sent.get(i), received.get(j)))) {
+                files.add(sent.get(i++));
+            } else {
+                files.add(received.get(j++));
+            }
+        }
+        
+        boolean hasMore = i < sent.size() || j < received.size();
+        String nextCursor = hasMore ? FileCursor.after(files.get(files.size() - 1)).encode() : null;
+        return new FilePage(files, nextCursor);
+    }
+    
+    private List<SharedFile> findPage(Long senderId, Long recipientId, SharedFile.Category category,
+                                      FileCursor position, int size) {
+        PageRequest page = PageRequest.of(0, size);
+        if (category == null) {
+            return fileRepository.findPageBySenderAndRecipient(senderId, recipientId,
+                    position.getUploadTime(), position.getId(), page);
+        }
+        return fileRepository.findPageBySenderAndRecipientAndCategory(senderId, recipientId, category,
+                position.getUploadTime(), position.getId(), page);
+    }
+    
+    private static boolean isNewer(SharedFile a, SharedFile b) {
+        int byTime = a.getUploadTime().compareTo(b.getUploadTime());
+        return byTime != 0 ? byTime > 0 : a.getId() > b.getId();
     }
     
     /**
@@ -184,7 +602,7 @@ public class FileService {
      * @param extension File extension
      * @return True if supported
      */
-    private boolean isSupportedExtension(String extension) {
+    boolean isSupportedExtension(String extension) {
         // List of allowed file extensions
         List<String> allowedExtensions = List.of(
             "jpg", "jpeg", "png", "gif", "pdf", "doc", "docx", "xls", "xlsx", "ppt", "pptx", "txt"
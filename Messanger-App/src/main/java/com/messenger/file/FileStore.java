@@ -0,0 +1,95 @@
+package com.messenger.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+/**
+ * Storage backend for file content.
+ *
+ * Content is addressed by key. New content is always written to a local
+ * staging file first and then published under its key in one step, so a
+ * reader never sees a half-written object. Keys are what {@link SharedFile}
+ * stores as its path.
+ */
+public interface FileStore {
+    
+    /**
+     * Key for new content with a given name, placed by the store's layout
+     * @param name Unique name, such as a UUID or content hash
+     * @return Key to store the content under
+     */
+    String keyFor(String name);
+    
+    /**
+     * Local file to write new content into before it is committed.
+     * The file is not created.
+     * @param name Name unique among staged files
+     * @return Staging location
+     */
+    Path stagingPath(String name);
+    
+    /**
+     * Publish a staged file under a key, replacing any existing content
+     * @param stagingFile File from {@link #stagingPath(String)}
+     * @param key Key to publish under
+     */
+    void commit(Path stagingFile, String key) throws IOException;
+    
+    /**
+     * Open stored content for reading
+     * @param key Content key
+     * @param offset Byte offset to start from
+     * @return Stream positioned at offset
+     */
+    InputStream open(String key, long offset) throws IOException;
+    
+    /**
+     * Check whether content exists
+     * @param key Content key
+     * @return true if stored
+     */
+    boolean exists(String key);
+    
+    /**
+     * Size of stored content
+     * @param key Content key
+     * @return Size in bytes
+     */
+    long size(String key) throws IOException;
+    
+    /**
+     * Delete stored content if it exists
+     * @param key Content key
+     */
+    void delete(String key) throws IOException;
+    
+    /**
+     * Time content was last written
+     * @param key Content key
+     * @return Modification time
+     */
+    Instant lastModified(String key) throws IOException;
+    
+    /**
+     * List every stored key, lazily. Staging files are not included.
+     * The stream must be closed.
+     * @return Stream of keys
+     */
+    Stream<String> listKeys() throws IOException;
+    
+    /**
+     * List the files currently in the staging area. The stream must be closed.
+     * @return Stream of staging files
+     */
+    Stream<Path> listStagingFiles() throws IOException;
+    
+    /**
+     * Local file holding the content, for zero-copy transfers
+     * @param key Content key
+     * @return Path on local disk, or null if the store is not local
+     */
+    Path localPath(String key);
+}
@@ -0,0 +1,333 @@
+package com.messenger.file;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates resized JPEG variants of uploaded images in the background.
+ *
+ * Variants are stored under the original's key plus a suffix, so deduplicated
+ * content shares its variants too. Work runs on a small bounded pool; when
+ * the queue is full a variant is simply skipped, and it is scheduled again
+ * the first time someone asks for it.
+ *
+ * Content that cannot be decoded as an image is skipped quietly, since the
+ * original is served instead. Any other failure, such as a variant that
+ * could not be stored, is counted in {@code files.image-variants.failed}.
+ */
+@Service
+public class ImageVariantService {
+    
+    /**
+     * Enum for the generated sizes, bounded by their longest side
+     */
+    public enum Variant {
+        THUMBNAIL(320), SCREEN(1280);
+        
+        private final int maxDimension;
+        
+        Variant(int maxDimension) {
+            this.maxDimension = maxDimension;
+        }
+        
+        public int getMaxDimension() {
+            return maxDimension;
+        }
+        
+        /**
+         * Storage key of this variant of a stored file
+         * @param originalKey Storage key of the original
+         * @return Storage key of the variant
+         */
+        public String keyFor(String originalKey) {
+            return originalKey + "." + name().toLowerCase() + ".jpg";
+        }
+        
+        /**
+         * Storage key of the original a variant was generated from
+         * @param key Storage key of any stored content
+         * @return Storage key of the original, or null if the key is not a variant
+         */
+        public static String originalKeyOf(String key) {
+            for (Variant variant : values()) {
+                String suffix = variant.keyFor("");
+                if (key.endsWith(suffix)) {
+                    return key.substring(0, key.length() - suffix.length());
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Parse a variant from a request parameter
+         * @param value Parameter value, case-insensitive
+         * @return The variant
+         */
+        public static Variant fromParameter(String value) {
+            for (Variant variant : values()) {
+                if (variant.name().equalsIgnoreCase(value)) {
+                    return variant;
+                }
+            }
+            throw new IllegalArgumentException("Unknown image variant: " + value);
+        }
+    }
+    
+    private static final Set<String> IMAGE_EXTENSIONS = Set.of("jpg", "jpeg", "png", "gif");
+    
+    private final FileStore fileStore;
+    private final ThreadPoolExecutor executor;
+    private final long maxPixels;
+    private final float jpegQuality;
+    private final Counter failed;
+    
+    // Keys with generation queued or running, so one original is never processed twice at once
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    
+    @Autowired
+    public ImageVariantService(FileStore fileStore,
+                               MeterRegistry meterRegistry,
+                               @Value("${file.image-variants.workers:2}") int workers,
+                               @Value("${file.image-variants.queue-capacity:200}") int queueCapacity,
+                               @Value("${file.image-variants.max-pixels:50000000}") long maxPixels,
+                               @Value("${file.image-variants.jpeg-quality:0.8}") float jpegQuality) {
+        this.fileStore = fileStore;
+        this.maxPixels = maxPixels;
+        this.jpegQuality = jpegQuality;
+        this.failed = Counter.builder("files.image-variants.failed")
+                .description("Image variant generations that failed other than on unreadable content")
+                .register(meterRegistry);
+        
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "image-variant-worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    // Resizing must never compete with request handling
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+    
+    /**
+     * Queue generation of all variants of an uploaded file, if it is an image
+     * @param sharedFile Uploaded file
+     */
+    public void generateVariantsAsync(SharedFile sharedFile) {
+        if (!supportsVariants(sharedFile)) {
+            return;
+        }
+        
+        String key = sharedFile.getPath();
+        if (!pending.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    generateVariants(key);
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Queue is full; the variant is generated on first request instead
+            pending.remove(key);
+        }
+    }
+    
+    /**
+     * Find a generated variant of a file, queueing generation if it is missing
+     * @param sharedFile Original file
+     * @param variant Requested variant
+     * @return Storage key of the variant, or null if it is not available (yet)
+     */
+    public String findVariant(SharedFile sharedFile, Variant variant) {
+        if (!supportsVariants(sharedFile)) {
+            return null;
+        }
+        
+        String variantKey = variant.keyFor(sharedFile.getPath());
+        if (fileStore.exists(variantKey)) {
+            return variantKey;
+        }
+        generateVariantsAsync(sharedFile);
+        return null;
+    }
+    
+    /**
+     * Check whether variants can be made for a file. Encrypted files are
+     * opaque to the server.
+     * @param sharedFile File entity
+     * @return true for unencrypted images
+     */
+    public boolean supportsVariants(SharedFile sharedFile) {
+        String extension = FilenameUtils.getExtension(sharedFile.getFilename());
+        return !sharedFile.isEncrypted() && sharedFile.getCodec() == null
+                && extension != null && IMAGE_EXTENSIONS.contains(extension.toLowerCase());
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    private void generateVariants(String key) {
+        try {
+            // Decode once, at a size good enough for the largest variant still missing
+            Variant largestMissing = null;
+            for (Variant variant : Variant.values()) {
+                if (!fileStore.exists(variant.keyFor(key))
+                        && (largestMissing == null || variant.maxDimension > largestMissing.maxDimension)) {
+                    largestMissing = variant;
+                }
+            }
+            if (largestMissing == null || !fileStore.exists(key)) {
+                return;
+            }
+            
+            BufferedImage image;
+            try {
+                image = readImage(key, largestMissing.maxDimension);
+            } catch (IOException e) {
+                // Not an image we can read; the original is served instead
+                return;
+            }
+            if (image == null) {
+                return;
+            }
+            for (Variant variant : Variant.values()) {
+                String variantKey = variant.keyFor(key);
+                if (!fileStore.exists(variantKey)) {
+                    writeJpeg(resize(image, variant.maxDimension), variantKey);
+                }
+            }
+        } catch (IOException e) {
+            // Storing a variant failed; it is generated again on the next request
+            failed.increment();
+        } catch (RuntimeException e) {
+            // A bug rather than bad input; rethrown so the worker's uncaught exception handler reports it
+            failed.increment();
+            throw e;
+        }
+    }
+    
+    /**
+     * Decode an image, subsampling large sources while reading so a 50
+     * megapixel photo never has to be fully decoded to make a thumbnail
+     * @return The image, or null if it cannot or should not be decoded
+     */
+    private BufferedImage readImage(String key, int targetDimension) throws IOException {
+        try (InputStream source = fileStore.open(key, 0);
+             ImageInputStream in = ImageIO.createImageInputStream(source)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                // Refuse decompression bombs
+                if ((long) width * height > maxPixels) {
+                    return null;
+                }
+                
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, Math.max(width, height) / (targetDimension * 2));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+    
+    /**
+     * Scale an image to fit a bounding square, flattening transparency onto white
+     */
+    private BufferedImage resize(BufferedImage source, int maxDimension) {
+        double scale = Math.min(1.0, (double) maxDimension / Math.max(source.getWidth(), source.getHeight()));
+        
+        // Halve in steps first; a single large bilinear step skips most source pixels and aliases badly
+        BufferedImage current = source;
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * scale));
+        while (current.getWidth() / 2 >= targetWidth && current.getHeight() / 2 >= targetHeight) {
+            current = draw(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        return draw(current, targetWidth, targetHeight);
+    }
+    
+    private BufferedImage draw(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+    
+    /**
+     * Write a JPEG to a staging file and commit it, so a half-written
+     * variant is never served
+     */
+    private void writeJpeg(BufferedImage image, String variantKey) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        Path tempFile = fileStore.stagingPath("variant_" + UUID.randomUUID());
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(tempFile.toFile())) {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+            fileStore.commit(tempFile, variantKey);
+        } finally {
+            writer.dispose();
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
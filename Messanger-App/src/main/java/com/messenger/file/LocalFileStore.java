@@ -0,0 +1,135 @@
+package com.messenger.file;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+/**
+ * File store on the local filesystem.
+ *
+ * New content is sharded into two levels of directories named after the
+ * first four characters of its name ({@code ab/cd/abcd...}), giving 65536
+ * directories with a bounded number of entries each. Names are UUIDs or
+ * content hashes, so those characters are already evenly spread. Keys from
+ * before sharding are plain names in the root and still resolve.
+ *
+ * Staging files live in the same filesystem, so commit is an atomic rename.
+ */
+@Component
+public class LocalFileStore implements FileStore {
+    
+    private static final String STAGING_DIRECTORY = ".staging";
+    
+    private final Path root;
+    private final Path stagingLocation;
+    
+    @Autowired
+    public LocalFileStore(@Value("${file.upload.directory}") String uploadDir) {
+        this.root = Paths.get(uploadDir).toAbsolutePath().normalize();
+        this.stagingLocation = root.resolve(STAGING_DIRECTORY);
+        
+        try {
+            Files.createDirectories(this.stagingLocation);
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not create the directory for file storage", ex);
+        }
+    }
+    
+    @Override
+    public String keyFor(String name) {
+        if (name.length() < 4) {
+            return name;
+        }
+        return name.substring(0, 2) + "/" + name.substring(2, 4) + "/" + name;
+    }
+    
+    @Override
+    public Path stagingPath(String name) {
+        return resolveWithin(stagingLocation, name);
+    }
+    
+    @Override
+    public void commit(Path stagingFile, String key) throws IOException {
+        Path target = resolve(key);
+        Files.createDirectories(target.getParent());
+        Files.move(stagingFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    @Override
+    public InputStream open(String key, long offset) throws IOException {
+        FileChannel channel = FileChannel.open(resolve(key), StandardOpenOption.READ);
+        if (offset > 0) {
+            channel.position(offset);
+        }
+        return Channels.newInputStream(channel);
+    }
+    
+    @Override
+    public boolean exists(String key) {
+        return Files.exists(resolve(key));
+    }
+    
+    @Override
+    public long size(String key) throws IOException {
+        return Files.size(resolve(key));
+    }
+    
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(resolve(key));
+    }
+    
+    @Override
+    public Instant lastModified(String key) throws IOException {
+        return Files.getLastModifiedTime(resolve(key)).toInstant();
+    }
+    
+    @Override
+    public Stream<String> listKeys() throws IOException {
+        return Files.walk(root)
+                .filter(path -> !path.startsWith(stagingLocation) && Files.isRegularFile(path))
+                .map(path -> root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/"));
+    }
+    
+    @Override
+    public Stream<Path> listStagingFiles() throws IOException {
+        return Files.list(stagingLocation).filter(Files::isRegularFile);
+    }
+    
+    @Override
+    public Path localPath(String key) {
+        return resolve(key);
+    }
+    
+    /**
+     * Root directory of the store
+     * @return Absolute path
+     */
+    public Path getRoot() {
+        return root;
+    }
+    
+    private Path resolve(String key) {
+        return resolveWithin(root, key);
+    }
+    
+    private static Path resolveWithin(Path directory, String name) {
+        Path resolved = directory.resolve(name).normalize();
+        if (!resolved.startsWith(directory)) {
+            throw new IllegalArgumentException("Invalid storage key: " + name);
+        }
+        return resolved;
+    }
+}
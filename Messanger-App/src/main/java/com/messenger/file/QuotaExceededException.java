@@ -0,0 +1,11 @@
+package com.messenger.file;
+
+/**
+ * Thrown when an upload would take a user past their storage quota
+ */
+public class QuotaExceededException extends RuntimeException {
+    
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
@@ -3,22 +3,32 @@ package com.messenger.file;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
 import java.time.LocalDateTime;
+import java.util.List;
 
 /**
  * Entity representing a shared file
  */
 @Data
 @Entity
-@Table(name = "shared_files")
+@Table(name = "shared_files",
+        indexes = {
+                @Index(name = "idx_shared_files_sender_recipient_time", columnList = "sender_id, recipient_id, upload_time, id"),
+                @Index(name = "idx_shared_files_sender_recipient_category_time",
+                        columnList = "sender_id, recipient_id, category, upload_time, id"),
+                @Index(name = "idx_shared_files_sender_time", columnList = "sender_id, upload_time, id"),
+                @Index(name = "idx_shared_files_recipient_time", columnList = "recipient_id, upload_time, id")
+        })
 @NoArgsConstructor
 @AllArgsConstructor
 public class SharedFile {
     
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "snowflake")
+    @GenericGenerator(name = "snowflake", strategy = "com.messenger.id.SnowflakeIdentifierGenerator")
     private Long id;
     
     @Column(name = "sender_id", nullable = false)
@@ -42,9 +52,107 @@ public class SharedFile {
     @Column(name = "upload_time", nullable = false)
     private LocalDateTime uploadTime;
     
+    @Column(name = "category", length = 16)
+    @Enumerated(EnumType.STRING)
+    private Category category;
+    
     @Column(name = "is_encrypted")
     private boolean encrypted;
     
+    /**
+     * On-disk layout of encrypted content; null for files written before
+     * binary storage, which hold Base64 text
+     */
+    @Column(name = "cipher_format")
+    @Enumerated(EnumType.STRING)
+    private CipherFormat cipherFormat;
+    
+    /**
+     * Compression the content is stored with; null if stored as uploaded
+     */
+    @Column(name = "codec", length = 16)
+    @Enumerated(EnumType.STRING)
+    private Codec codec;
+    
+    /**
+     * CRC-32 of the content as uploaded; null for files stored before it was recorded
+     */
+    @Column(name = "crc32")
+    private Long crc32;
+    
+    /**
+     * Blob ID for deduplicated (unencrypted) files; path then points at the
+     * shared blob. Null for encrypted and older files, which own their stored
+     * file outright. The hex SHA-256 of the content as uploaded, suffixed
+     * with the codec for compressed files (see {@link #blobId}).
+     */
+    @Column(name = "blob_sha256", length = 72)
+    private String blobSha256;
+    
+    /**
+     * Enum for encrypted file layouts.
+     * CHUNKED is the streaming format written for new uploads; BASE64 and
+     * ENVELOPE are whole-file formats kept readable for older files.
+     */
+    public enum CipherFormat {
+        BASE64, ENVELOPE, CHUNKED
+    }
+    
+    /**
+     * Enum for compression applied to stored content
+     */
+    public enum Codec {
+        GZIP
+    }
+    
+    /**
+     * Enum for the kinds of file shown in separate tabs of a conversation
+     */
+    public enum Category {
+        IMAGE("jpg", "jpeg", "png", "gif"),
+        DOCUMENT("pdf", "doc", "docx", "xls", "xlsx", "ppt", "pptx", "txt"),
+        OTHER;
+        
+        private final List<String> extensions;
+        
+        Category(String... extensions) {
+            this.extensions = List.of(extensions);
+        }
+        
+        public List<String> getExtensions() {
+            return extensions;
+        }
+        
+        /**
+         * Category of a file by its extension
+         * @param extension File extension
+         * @return The matching category, or OTHER
+         */
+        public static Category forExtension(String extension) {
+            if (extension != null) {
+                String lower = extension.toLowerCase();
+                for (Category category : values()) {
+                    if (category.extensions.contains(lower)) {
+                        return category;
+                    }
+                }
+            }
+            return OTHER;
+        }
+    }
+    
+    /**
+     * Blob ID for content stored with a codec. The codec sits outside the
+     * hash, so raw and compressed blobs can never share an ID whatever bytes
+     * are uploaded.
+     * @param sha256Hex Hex SHA-256 of the content as uploaded
+     * @param codec Codec the content is stored with, or null
+     * @return Blob ID, e.g. "ab12...ef" or "ab12...ef-gzip"
+     */
+    public static String blobId(String sha256Hex, Codec codec) {
+        return codec == null ? sha256Hex : sha256Hex + "-" + codec.name().toLowerCase();
+    }
+    
     @PrePersist
     protected void onCreate() {
         uploadTime = LocalDateTime.now();
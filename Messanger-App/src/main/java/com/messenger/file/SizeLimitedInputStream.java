@@ -0,0 +1,73 @@
+package com.messenger.file;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that counts the bytes read through it and fails as soon as
+ * more than a limit have been read, so an oversized upload is stopped
+ * while it is still arriving
+ */
+class SizeLimitedInputStream extends FilterInputStream {
+    
+    private final long limit;
+    private final String message;
+    private long count;
+    
+    /**
+     * @param in Stream to read from
+     * @param limit Largest number of bytes allowed
+     * @param message Message of the exception thrown past the limit
+     */
+    SizeLimitedInputStream(InputStream in, long limit, String message) {
+        super(in);
+        this.limit = limit;
+        this.message = message;
+    }
+    
+    /**
+     * Number of bytes read so far
+     * @return Byte count
+     */
+    long getCount() {
+        return count;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            advance(1);
+        }
+        return b;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            advance(read);
+        }
+        return read;
+    }
+    
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        advance(skipped);
+        return skipped;
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    private void advance(long bytes) {
+        count += bytes;
+        if (count > limit) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.messenger.file;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Keeps per-user storage usage and enforces the storage quota.
+ *
+ * Space is reserved before any bytes of an upload are written and released
+ * when the upload fails or the file is deleted, so usage never has to be
+ * recomputed from the files table and an uploader over quota is turned
+ * away before touching the disk.
+ */
+@Service
+public class StorageQuotaService {
+    
+    private final StorageUsageRepository storageUsageRepository;
+    private final long quotaBytes;
+    
+    private final Counter reservedBytes;
+    private final Counter releasedBytes;
+    private final Counter rejections;
+    
+    @Autowired
+    public StorageQuotaService(StorageUsageRepository storageUsageRepository,
+                               MeterRegistry meterRegistry,
+                               @Value("${file.quota.per-user:5GB}") DataSize quota) {
+        this.storageUsageRepository = storageUsageRepository;
+        this.quotaBytes = quota.toBytes();
+        
+        this.reservedBytes = Counter.builder("files.quota.reserved.bytes")
+                .description("Bytes of storage reserved for uploads")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.releasedBytes = Counter.builder("files.quota.released.bytes")
+                .description("Bytes of storage released by deletes and failed uploads")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.rejections = Counter.builder("files.quota.rejections")
+                .description("Uploads refused because the user was over quota")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Count files stored before usage was tracked. Only runs while no usage
+     * has been recorded at all.
+     */
+    @PostConstruct
+    public void seedUsage() {
+        if (storageUsageRepository.count() == 0) {
+            storageUsageRepository.seedFromSharedFiles();
+        }
+    }
+    
+    /**
+     * Reserve space for a file a user is about to upload
+     * @param userId Uploading user ID
+     * @param bytes File size
+     * @throws QuotaExceededException if the file does not fit in the user's quota
+     */
+    public void reserve(Long userId, long bytes) {
+        if (storageUsageRepository.reserve(userId, bytes, quotaBytes) == 0) {
+            rejections.increment();
+            throw new QuotaExceededException("Storage quota of " + DataSize.ofBytes(quotaBytes).toMegabytes()
+                    + "MB exceeded");
+        }
+        reservedBytes.increment(bytes);
+    }
+    
+    /**
+     * Give back space reserved for a file that was deleted or never stored
+     * @param userId Uploading user ID
+     * @param bytes File size
+     */
+    public void release(Long userId, long bytes) {
+        storageUsageRepository.release(userId, bytes);
+        releasedBytes.increment(bytes);
+    }
+    
+    /**
+     * Give back the unused part of a reservation made before a file's size was known
+     * @param userId Uploading user ID
+     * @param bytes Bytes reserved but not used
+     */
+    public void shrink(Long userId, long bytes) {
+        storageUsageRepository.shrink(userId, bytes);
+        releasedBytes.increment(bytes);
+    }
+    
+    /**
+     * Get a user's current usage
+     * @param userId User ID
+     * @return Usage, zero if the user never uploaded anything
+     */
+    public StorageUsage getUsage(Long userId) {
+        return storageUsageRepository.findById(userId)
+                .orElseGet(() -> new StorageUsage(userId, 0L, 0L, null));
+    }
+    
+    /**
+     * Storage quota per user
+     * @return Quota in bytes
+     */
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+}
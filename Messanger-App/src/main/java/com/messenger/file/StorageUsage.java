@@ -0,0 +1,37 @@
+package com.messenger.file;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Entity holding how much storage a user's uploads take up, kept current
+ * as files are stored and deleted
+ */
+@Data
+@Entity
+@Table(name = "user_storage_usage")
+@NoArgsConstructor
+@AllArgsConstructor
+public class StorageUsage {
+    
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+    
+    /**
+     * Bytes of stored files and reserved upload space, counted at their
+     * original size whether or not the content is deduplicated
+     */
+    @Column(name = "used_bytes", nullable = false)
+    private Long usedBytes;
+    
+    @Column(name = "file_count", nullable = false)
+    private Long fileCount;
+    
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+}
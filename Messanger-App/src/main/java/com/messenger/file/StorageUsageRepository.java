@@ -0,0 +1,68 @@
+package com.messenger.file;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Repository for per-user storage usage
+ */
+@Repository
+public interface StorageUsageRepository extends JpaRepository<StorageUsage, Long> {
+    
+    /**
+     * Add to a user's usage if it stays within the quota, creating the row on
+     * first use. One conditional upsert, so concurrent uploads by the same user
+     * cannot both squeeze under the limit.
+     * @param userId User ID
+     * @param bytes Bytes to add
+     * @param quota Usage limit in bytes
+     * @return 1 if the space was reserved, 0 if it would exceed the quota
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO user_storage_usage (user_id, used_bytes, file_count, updated_at) " +
+            "SELECT :userId, :bytes, 1, now() WHERE :bytes <= :quota " +
+            "ON CONFLICT (user_id) DO UPDATE SET used_bytes = user_storage_usage.used_bytes + :bytes, " +
+            "file_count = user_storage_usage.file_count + 1, updated_at = now() " +
+            "WHERE user_storage_usage.used_bytes + :bytes <= :quota", nativeQuery = true)
+    int reserve(@Param("userId") Long userId, @Param("bytes") long bytes, @Param("quota") long quota);
+    
+    /**
+     * Take bytes off a user's usage
+     * @param userId User ID
+     * @param bytes Bytes to remove
+     * @return Number of updated rows
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "UPDATE user_storage_usage SET used_bytes = GREATEST(used_bytes - :bytes, 0), " +
+            "file_count = GREATEST(file_count - 1, 0), updated_at = now() WHERE user_id = :userId", nativeQuery = true)
+    int release(@Param("userId") Long userId, @Param("bytes") long bytes);
+    
+    /**
+     * Take bytes off a user's usage without changing the file count
+     * @param userId User ID
+     * @param bytes Bytes to remove
+     * @return Number of updated rows
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "UPDATE user_storage_usage SET used_bytes = GREATEST(used_bytes - :bytes, 0), updated_at = now() " +
+            "WHERE user_id = :userId", nativeQuery = true)
+    int shrink(@Param("userId") Long userId, @Param("bytes") long bytes);
+    
+    /**
+     * Seed usage from the files already stored, for users without a row yet
+     * @return Number of inserted rows
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO user_storage_usage (user_id, used_bytes, file_count, updated_at) " +
+            "SELECT sender_id, SUM(file_size), COUNT(*), now() FROM shared_files GROUP BY sender_id " +
+            "ON CONFLICT (user_id) DO NOTHING", nativeQuery = true)
+    int seedFromSharedFiles();
+}
@@ -0,0 +1,24 @@
+package com.messenger.file;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Multipart resolver that leaves streaming uploads alone.
+ *
+ * Resolving a request parses every part, spooling files to disk, before the
+ * controller runs. The streaming upload endpoint reads the body itself, so
+ * it is not treated as multipart here; all other requests are resolved as usual.
+ */
+@Component(DispatcherServlet.MULTIPART_RESOLVER_BEAN_NAME)
+public class StreamingMultipartResolver extends StandardServletMultipartResolver {
+    
+    @Override
+    public boolean isMultipart(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return !path.equals(StreamingUploadService.STREAM_UPLOAD_PATH) && super.isMultipart(request);
+    }
+}
@@ -0,0 +1,103 @@
+package com.messenger.file;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores uploads by parsing the multipart body as it arrives.
+ *
+ * Requests to {@link #STREAM_UPLOAD_PATH} are left unparsed by
+ * {@link StreamingMultipartResolver}, so the file part is never spooled to a
+ * temporary file by the container: its bytes go from the socket through
+ * validation (and encryption, if asked for) straight into the store. Form
+ * fields have to come before the file part, since the file is stored as soon
+ * as it is reached.
+ */
+@Service
+public class StreamingUploadService {
+    
+    public static final String STREAM_UPLOAD_PATH = "/api/files/upload/stream";
+    
+    private static final String FILE_FIELD = "file";
+    
+    // Form fields are small; anything longer is not a field this endpoint understands
+    private static final int MAX_FIELD_LENGTH = 1024;
+    
+    private final FileService fileService;
+    
+    @Autowired
+    public StreamingUploadService(FileService fileService) {
+        this.fileService = fileService;
+    }
+    
+    /**
+     * Store the file in a multipart request body
+     * @param request Request with a multipart/form-data body holding
+     *                recipientId, optional encrypt/encryptionKey and then file
+     * @param senderId Sender ID
+     * @return Stored file entity
+     * @throws IllegalArgumentException if the body is malformed or the file is not allowed
+     * @throws QuotaExceededException if the file may not fit in the sender's quota
+     */
+    public SharedFile upload(HttpServletRequest request, Long senderId) throws IOException {
+        if (!ServletFileUpload.isMultipartContent(request)) {
+            throw new IllegalArgumentException("Expected a multipart/form-data request");
+        }
+        
+        Map<String, String> fields = new HashMap<>();
+        try {
+            FileItemIterator items = new ServletFileUpload().getItemIterator(request);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                if (item.isFormField()) {
+                    fields.put(item.getFieldName(), readField(item));
+                } else if (FILE_FIELD.equals(item.getFieldName())) {
+                    return store(item, fields, request.getContentLengthLong(), senderId);
+                }
+            }
+        } catch (FileUploadException e) {
+            throw new IllegalArgumentException("Malformed multipart request: " + e.getMessage(), e);
+        }
+        throw new IllegalArgumentException("Request has no file part");
+    }
+    
+    private SharedFile store(FileItemStream item, Map<String, String> fields, long requestLength, Long senderId)
+            throws IOException {
+        String recipientId = fields.get("recipientId");
+        if (recipientId == null) {
+            throw new IllegalArgumentException("recipientId must be sent before the file");
+        }
+        boolean encrypt = Boolean.parseBoolean(fields.get("encrypt"));
+        
+        try (InputStream content = item.openStream()) {
+            return fileService.storeFileStream(content, item.getName(), item.getContentType(), requestLength,
+                    senderId, parseId(recipientId), encrypt, fields.get("encryptionKey"));
+        }
+    }
+    
+    private static String readField(FileItemStream item) throws IOException {
+        try (InputStream in = new SizeLimitedInputStream(item.openStream(), MAX_FIELD_LENGTH,
+                "Form field " + item.getFieldName() + " is too long")) {
+            return Streams.asString(in, "UTF-8");
+        }
+    }
+    
+    private static Long parseId(String value) {
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid recipientId: " + value);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.messenger.file;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Entity tracking a resumable upload in progress.
+ * Received bytes are appended to a partial file in storage; the session
+ * only records how far the upload has got.
+ */
+@Data
+@Entity
+@Table(name = "upload_sessions")
+@NoArgsConstructor
+@AllArgsConstructor
+public class UploadSession {
+    
+    // Random rather than sequential so session IDs cannot be guessed
+    @Id
+    @Column(length = 36)
+    private String id;
+    
+    @Column(name = "sender_id", nullable = false)
+    private Long senderId;
+    
+    @Column(name = "recipient_id", nullable = false)
+    private Long recipientId;
+    
+    @Column(nullable = false)
+    private String filename;
+    
+    @Column(nullable = false)
+    private String contentType;
+    
+    /**
+     * Declared plaintext size of the whole file
+     */
+    @Column(name = "total_size", nullable = false)
+    private Long totalSize;
+    
+    /**
+     * Plaintext bytes received so far; the next chunk must start here
+     */
+    @Column(name = "received_bytes", nullable = false)
+    private Long receivedBytes = 0L;
+    
+    @Column(name = "is_encrypted")
+    private boolean encrypted;
+    
+    /**
+     * SHA-256 of the encryption key, so every chunk is sealed with the same key
+     */
+    @JsonIgnore
+    @Column(name = "key_fingerprint", length = 64)
+    private String keyFingerprint;
+    
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+    
+    @Column(name = "updated_at", nullable = false)
+    private LocalDateTime updatedAt;
+    
+    @Version
+    private Long version;
+    
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+        updatedAt = createdAt;
+    }
+    
+    @PreUpdate
+    protected void onUpdate() {
+        updatedAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,137 @@
+package com.messenger.file;
+
+import com.messenger.user.User;
+import com.messenger.user.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.validation.Valid;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Controller for resumable uploads
+ */
+@RestController
+@RequestMapping("/api/files/uploads")
+public class UploadSessionController {
+    
+    private final UploadSessionService uploadSessionService;
+    private final ImageVariantService imageVariantService;
+    private final UserService userService;
+    
+    @Autowired
+    public UploadSessionController(UploadSessionService uploadSessionService,
+                                   ImageVariantService imageVariantService,
+                                   UserService userService) {
+        this.uploadSessionService = uploadSessionService;
+        this.imageVariantService = imageVariantService;
+        this.userService = userService;
+    }
+    
+    /**
+     * Start a resumable upload
+     * @param request File details
+     * @param authentication Current user's authentication; the current user is the sender
+     * @return The new upload session
+     */
+    @PostMapping
+    public ResponseEntity<?> createUpload(@Valid @RequestBody CreateUploadRequest request,
+                                          Authentication authentication) {
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        try {
+            return ResponseEntity.ok(uploadSessionService.createSession(request, currentUser.getId()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (QuotaExceededException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /**
+     * Get the state of an upload, including the offset to resume from
+     * @param sessionId Upload session ID
+     * @return The upload session
+     */
+    @GetMapping("/{sessionId}")
+    public ResponseEntity<?> getUpload(@PathVariable String sessionId) {
+        try {
+            return ResponseEntity.ok(uploadSessionService.getSession(sessionId));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+    
+    /**
+     * Append a piece of the file. The request body is the raw bytes.
+     * @param sessionId Upload session ID
+     * @param offset Offset the piece starts at
+     * @param checksum SHA-256 of the piece, hex or Base64 (optional)
+     * @param encryptionKey Encryption key (for encrypted uploads)
+     * @param request Servlet request carrying the piece
+     * @return The upload session with its new offset
+     */
+    @PutMapping("/{sessionId}")
+    public ResponseEntity<?> uploadChunk(
+            @PathVariable String sessionId,
+            @RequestParam("offset") long offset,
+            @RequestHeader(value = "X-Checksum-SHA256", required = false) String checksum,
+            @RequestParam(value = "encryptionKey", required = false) String encryptionKey,
+            HttpServletRequest request) throws IOException {
+        
+        try {
+            return ResponseEntity.ok(uploadSessionService.appendChunk(
+                    sessionId, offset, checksum, encryptionKey, request.getInputStream()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (IllegalStateException | OptimisticLockingFailureException e) {
+            return conflict(sessionId, e.getMessage());
+        }
+    }
+    
+    /**
+     * Finish an upload once every byte has been received
+     * @param sessionId Upload session ID
+     * @return The stored file entity
+     */
+    @PostMapping("/{sessionId}/complete")
+    public ResponseEntity<?> completeUpload(@PathVariable String sessionId) {
+        try {
+            SharedFile sharedFile = uploadSessionService.completeUpload(sessionId);
+            imageVariantService.generateVariantsAsync(sharedFile);
+            return ResponseEntity.ok(sharedFile);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return conflict(sessionId, e.getMessage());
+        }
+    }
+    
+    /**
+     * Abandon an upload
+     * @param sessionId Upload session ID
+     * @return Empty response
+     */
+    @DeleteMapping("/{sessionId}")
+    public ResponseEntity<?> abortUpload(@PathVariable String sessionId) {
+        try {
+            uploadSessionService.abortUpload(sessionId);
+            return ResponseEntity.noContent().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+    
+    /**
+     * 409 response telling the client where to resume from
+     */
+    private ResponseEntity<?> conflict(String sessionId, String message) {
+        long offset = uploadSessionService.getSession(sessionId).getReceivedBytes();
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", message, "offset", offset));
+    }
+}
@@ -0,0 +1,21 @@
+package com.messenger.file;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Repository for resumable upload sessions
+ */
+@Repository
+public interface UploadSessionRepository extends JpaRepository<UploadSession, String> {
+    
+    /**
+     * Find the sessions idle the longest, oldest first
+     * @param cutoff Only sessions last updated before this time
+     * @return Up to 100 sessions
+     */
+    List<UploadSession> findTop100ByUpdatedAtBeforeOrderByUpdatedAtAsc(LocalDateTime cutoff);
+}
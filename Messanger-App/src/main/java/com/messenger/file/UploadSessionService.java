@@ -0,0 +1,527 @@
+package com.messenger.file;
+
+import com.messenger.encryption.ChunkedFileCipher;
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Service for resumable uploads.
+ *
+ * A client creates a session with the file's size, then PUTs the content in
+ * pieces, each starting at the offset the server reports. Every piece is
+ * appended straight to a partial file in the store's staging area while its
+ * checksum is computed, so memory use does not depend on the file size. A
+ * piece that fails its checksum is cut off again and can simply be resent.
+ * Completing the session commits the partial file and records the file.
+ *
+ * Encrypted uploads are sealed in the chunked format as they arrive, so
+ * their pieces must cover whole cipher chunks ({@link ChunkedFileCipher#DEFAULT_CHUNK_SIZE}
+ * bytes) except for the piece that ends the file. A chunk's nonce follows
+ * from the file header and its index, so sealing a resent piece would reuse
+ * nonces under the same key; an encrypted piece that fails once any chunk
+ * of it was sealed ends the upload instead, and the client starts a new one.
+ */
+@Service
+public class UploadSessionService {
+    
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final String PARTIAL_SUFFIX = ".part";
+    
+    private final UploadSessionRepository uploadSessionRepository;
+    private final FileService fileService;
+    private final FileStore fileStore;
+    private final StorageQuotaService storageQuotaService;
+    private final long maxUploadSize;
+    
+    // One writer per session at a time; a second concurrent PUT is rejected rather than queued
+    private final Map<String, ReentrantLock> sessionLocks = new ConcurrentHashMap<>();
+    
+    @Autowired
+    public UploadSessionService(UploadSessionRepository uploadSessionRepository,
+                                FileService fileService,
+                                FileStore fileStore,
+                                StorageQuotaService storageQuotaService,
+                                @Value("${file.upload.resumable.max-size:4GB}") DataSize maxUploadSize) {
+        this.uploadSessionRepository = uploadSessionRepository;
+        this.fileService = fileService;
+        this.fileStore = fileStore;
+        this.storageQuotaService = storageQuotaService;
+        this.maxUploadSize = maxUploadSize.toBytes();
+    }
+    
+    /**
+     * Start a resumable upload
+     * @param request File details
+     * @param senderId Uploading user, whose quota the file is charged to
+     * @return The new session
+     * @throws QuotaExceededException if the file does not fit in the sender's quota
+     */
+    public UploadSession createSession(CreateUploadRequest request, Long senderId) {
+        String filename = StringUtils.cleanPath(request.getFilename());
+        String extension = FilenameUtils.getExtension(filename);
+        if (!fileService.isSupportedExtension(extension)) {
+            throw new IllegalArgumentException("File type not allowed: " + extension);
+        }
+        if (request.getSize() > maxUploadSize) {
+            throw new IllegalArgumentException("File exceeds maximum size of " + DataSize.ofBytes(maxUploadSize).toMegabytes() + "MB");
+        }
+        if (request.isEncrypt() && request.getEncryptionKey() == null) {
+            throw new IllegalArgumentException("An encryption key is required for encrypted uploads");
+        }
+        
+        // The whole declared size counts against the quota from the start, and becomes the file's charge on completion
+        storageQuotaService.reserve(senderId, request.getSize());
+        
+        UploadSession session = new UploadSession();
+        session.setId(UUID.randomUUID().toString());
+        session.setSenderId(senderId);
+        session.setRecipientId(request.getRecipientId());
+        session.setFilename(filename);
+        session.setContentType(request.getContentType() != null ? request.getContentType() : "application/octet-stream");
+        session.setTotalSize(request.getSize());
+        session.setReceivedBytes(0L);
+        session.setEncrypted(request.isEncrypt());
+        
+        Path partialFile = partialPath(session.getId());
+        try {
+            if (request.isEncrypt()) {
+                SecretKey key = ChunkedFileCipher.keyFromBase64(request.getEncryptionKey());
+                ChunkedFileCipher chunkedCipher = ChunkedFileCipher.create(key, ChunkedFileCipher.DEFAULT_CHUNK_SIZE);
+                session.setKeyFingerprint(fingerprint(request.getEncryptionKey()));
+                
+                Files.write(partialFile, chunkedCipher.getHeader(), StandardOpenOption.CREATE_NEW);
+                if (request.getSize() == 0) {
+                    // An empty file is just the header and an empty final chunk
+                    byte[] sealed = new byte[ChunkedFileCipher.TAG_LENGTH];
+                    chunkedCipher.encryptChunk(0, true, new byte[0], 0, sealed);
+                    Files.write(partialFile, sealed, StandardOpenOption.APPEND);
+                }
+            } else {
+                Files.createFile(partialFile);
+            }
+            return uploadSessionRepository.save(session);
+        } catch (IOException | GeneralSecurityException ex) {
+            storageQuotaService.release(senderId, request.getSize());
+            throw new RuntimeException("Could not start the upload", ex);
+        } catch (RuntimeException ex) {
+            storageQuotaService.release(senderId, request.getSize());
+            throw ex;
+        }
+    }
+    
+    /**
+     * Get an upload session
+     * @param sessionId Session ID
+     * @return The session
+     */
+    public UploadSession getSession(String sessionId) {
+        return uploadSessionRepository.findById(sessionId)
+                .orElseThrow(() -> new IllegalArgumentException("Upload session not found: " + sessionId));
+    }
+    
+    /**
+     * Append a piece of the file
+     * @param sessionId Session ID
+     * @param offset Plaintext offset the piece starts at; must equal the bytes received so far
+     * @param checksum SHA-256 of the piece, hex or Base64 (optional)
+     * @param encryptionKey Encryption key (required for encrypted uploads)
+     * @param body Piece content
+     * @return The session with its new offset
+     */
+    public UploadSession appendChunk(String sessionId, long offset, String checksum, String encryptionKey,
+                                     InputStream body) {
+        ReentrantLock lock = lockSession(sessionId);
+        if (lock == null) {
+            throw new IllegalStateException("Another piece is being written to this upload");
+        }
+        try {
+            UploadSession session = getSession(sessionId);
+            if (offset != session.getReceivedBytes()) {
+                throw new IllegalStateException("Upload is at offset " + session.getReceivedBytes() + ", not " + offset);
+            }
+            if (session.getReceivedBytes().equals(session.getTotalSize())) {
+                throw new IllegalStateException("Upload has already received all " + session.getTotalSize() + " bytes");
+            }
+            
+            MessageDigest digest = sha256();
+            long received;
+            boolean sealing = false;
+            try (FileChannel channel = FileChannel.open(partialPath(sessionId), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long startPosition;
+                long endPosition;
+                if (session.isEncrypted()) {
+                    if (encryptionKey == null || !fingerprint(encryptionKey).equals(session.getKeyFingerprint())) {
+                        throw new IllegalArgumentException("Encryption key does not match the one the upload was started with");
+                    }
+                    ChunkedFileCipher chunkedCipher = readCipher(channel, ChunkedFileCipher.keyFromBase64(encryptionKey));
+                    startPosition = chunkedCipher.chunkOffset(offset / chunkedCipher.getChunkSize());
+                    // Anything past the acknowledged chunks was sealed by an interrupted attempt
+                    sealing = true;
+                    if (channel.size() > startPosition) {
+                        throw new IllegalArgumentException("An earlier attempt at this piece was interrupted");
+                    }
+                    received = writeEncrypted(session, chunkedCipher, channel, startPosition, body, digest);
+                    endPosition = channel.position();
+                } else {
+                    startPosition = offset;
+                    received = writePlain(session, channel, startPosition, body, digest);
+                    endPosition = startPosition + received;
+                }
+                
+                if (checksum != null && !MessageDigest.isEqual(digest.digest(), decodeChecksum(checksum))) {
+                    channel.truncate(startPosition);
+                    throw new IllegalArgumentException(session.isEncrypted()
+                            ? "Checksum mismatch"
+                            : "Checksum mismatch; resend the piece from offset " + offset);
+                }
+                // Drop anything left over from an earlier interrupted attempt
+                channel.truncate(endPosition);
+            } catch (IOException | GeneralSecurityException ex) {
+                if (sealing) {
+                    abandon(session);
+                } else {
+                    truncateQuietly(sessionId, session);
+                }
+                throw new RuntimeException("Could not write the upload", ex);
+            } catch (RuntimeException ex) {
+                if (sealing) {
+                    abandon(session);
+                    throw new IllegalArgumentException(ex.getMessage()
+                            + "; encrypted pieces cannot be resent, so the upload was abandoned. Start a new upload");
+                }
+                truncateQuietly(sessionId, session);
+                throw ex;
+            }
+            
+            session.setReceivedBytes(offset + received);
+            return uploadSessionRepository.save(session);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Finish an upload and turn it into a shared file
+     * @param sessionId Session ID
+     * @return The stored file entity
+     */
+    public SharedFile completeUpload(String sessionId) {
+        ReentrantLock lock = lockSession(sessionId);
+        if (lock == null) {
+            throw new IllegalStateException("A piece is still being written to this upload");
+        }
+        try {
+            UploadSession session = getSession(sessionId);
+            if (!session.getReceivedBytes().equals(session.getTotalSize())) {
+                throw new IllegalStateException("Upload is incomplete: " + session.getReceivedBytes()
+                        + " of " + session.getTotalSize() + " bytes received");
+            }
+            
+            String storedName;
+            String blobSha256 = null;
+            Long crc32 = null;
+            try {
+                if (session.isEncrypted()) {
+                    String extension = FilenameUtils.getExtension(session.getFilename());
+                    storedName = fileStore.keyFor(UUID.randomUUID().toString() + "." + extension);
+                    // Published in one step, so readers never see a partial file
+                    fileStore.commit(partialPath(sessionId), storedName);
+                } else {
+                    // Pieces arrive in separate requests, so the content hash is taken over the finished file
+                    CRC32 crc = new CRC32();
+                    blobSha256 = sha256Hex(partialPath(sessionId), crc);
+                    crc32 = crc.getValue();
+                    storedName = fileService.storeBlob(partialPath(sessionId), blobSha256, session.getTotalSize());
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException("Could not store the file", ex);
+            }
+            
+            SharedFile sharedFile = new SharedFile();
+            sharedFile.setSenderId(session.getSenderId());
+            sharedFile.setRecipientId(session.getRecipientId());
+            sharedFile.setFilename(session.getFilename());
+            sharedFile.setPath(storedName);
+            sharedFile.setContentType(session.getContentType());
+            sharedFile.setSize(session.getTotalSize());
+            sharedFile.setCategory(SharedFile.Category.forExtension(FilenameUtils.getExtension(session.getFilename())));
+            sharedFile.setEncrypted(session.isEncrypted());
+            sharedFile.setCipherFormat(session.isEncrypted() ? SharedFile.CipherFormat.CHUNKED : null);
+            sharedFile.setCrc32(crc32);
+            sharedFile.setBlobSha256(blobSha256);
+            SharedFile saved = fileService.saveReferencingBlob(sharedFile);
+            
+            uploadSessionRepository.delete(session);
+            sessionLocks.remove(sessionId);
+            return saved;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Abandon an upload and delete what was received
+     * @param sessionId Session ID
+     */
+    public void abortUpload(String sessionId) {
+        UploadSession session = getSession(sessionId);
+        try {
+            Files.deleteIfExists(partialPath(sessionId));
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not delete the partial upload", ex);
+        }
+        discard(session);
+    }
+    
+    /**
+     * Abandon an upload nobody has touched for a while. Sessions with a
+     * piece being written right now are left alone.
+     * @param sessionId Session ID
+     * @param idleSince Only if the session was last updated before this time
+     * @return Bytes of partial upload deleted, or -1 if the session was kept
+     */
+    public long expireSession(String sessionId, LocalDateTime idleSince) {
+        ReentrantLock lock;
+        try {
+            lock = lockSession(sessionId);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+        if (lock == null) {
+            return -1;
+        }
+        try {
+            UploadSession session = getSession(sessionId);
+            if (!session.getUpdatedAt().isBefore(idleSince)) {
+                return -1;
+            }
+            
+            Path partialFile = partialPath(sessionId);
+            long size = Files.exists(partialFile) ? Files.size(partialFile) : 0;
+            Files.deleteIfExists(partialFile);
+            discard(session);
+            return size;
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not delete the partial upload", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Take a session's write lock without waiting. The session is looked up
+     * before a lock is created, so unknown IDs never add one, and again once
+     * it is held, so a lock for a session that finished in between is dropped.
+     * @param sessionId Session ID
+     * @return The held lock, or null if another request holds it
+     * @throws IllegalArgumentException if there is no such session
+     */
+    private ReentrantLock lockSession(String sessionId) {
+        if (!uploadSessionRepository.existsById(sessionId)) {
+            throw new IllegalArgumentException("Upload session not found: " + sessionId);
+        }
+        ReentrantLock lock = sessionLocks.computeIfAbsent(sessionId, id -> new ReentrantLock());
+        if (!lock.tryLock()) {
+            return null;
+        }
+        if (!uploadSessionRepository.existsById(sessionId)) {
+            sessionLocks.remove(sessionId, lock);
+            lock.unlock();
+            throw new IllegalArgumentException("Upload session not found: " + sessionId);
+        }
+        return lock;
+    }
+    
+    /**
+     * Session a staging file belongs to
+     * @param stagingFileName Name of a file in the staging area
+     * @return Session ID, or null if the file is not a partial upload
+     */
+    static String sessionIdOf(String stagingFileName) {
+        return stagingFileName.endsWith(PARTIAL_SUFFIX)
+                ? stagingFileName.substring(0, stagingFileName.length() - PARTIAL_SUFFIX.length())
+                : null;
+    }
+    
+    private long writePlain(UploadSession session, FileChannel channel, long position,
+                            InputStream body, MessageDigest digest) throws IOException {
+        long remaining = session.getTotalSize() - session.getReceivedBytes();
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long received = 0;
+        int read;
+        while ((read = body.read(buffer)) != -1) {
+            received += read;
+            if (received > remaining) {
+                throw new IllegalArgumentException("Piece runs past the declared file size");
+            }
+            digest.update(buffer, 0, read);
+            ByteBuffer source = ByteBuffer.wrap(buffer, 0, read);
+            while (source.hasRemaining()) {
+                position += channel.write(source, position);
+            }
+        }
+        return received;
+    }
+    
+    private long writeEncrypted(UploadSession session, ChunkedFileCipher chunkedCipher, FileChannel channel,
+                                long position, InputStream body, MessageDigest digest)
+            throws IOException, GeneralSecurityException {
+        int chunkSize = chunkedCipher.getChunkSize();
+        long offset = session.getReceivedBytes();
+        if (offset % chunkSize != 0) {
+            throw new IllegalArgumentException("Encrypted uploads must be sent in multiples of " + chunkSize + " bytes");
+        }
+        
+        long remaining = session.getTotalSize() - offset;
+        long index = offset / chunkSize;
+        byte[] plain = new byte[chunkSize];
+        byte[] sealed = new byte[chunkSize + ChunkedFileCipher.TAG_LENGTH];
+        long received = 0;
+        channel.position(position);
+        while (true) {
+            int read = body.readNBytes(plain, 0, chunkSize);
+            if (received + read > remaining) {
+                throw new IllegalArgumentException("Piece runs past the declared file size");
+            }
+            boolean endsFile = received + read == remaining;
+            if (read == 0 && !endsFile) {
+                return received;
+            }
+            if (read < chunkSize && !endsFile) {
+                throw new IllegalArgumentException("Encrypted uploads must be sent in multiples of " + chunkSize + " bytes");
+            }
+            
+            digest.update(plain, 0, read);
+            received += read;
+            // A file always ends with a short chunk, so a full one at the end is followed by an empty final chunk
+            boolean last = read < chunkSize;
+            writeFully(channel, sealed, chunkedCipher.encryptChunk(index++, last, plain, read, sealed));
+            if (endsFile) {
+                if (!last) {
+                    writeFully(channel, sealed, chunkedCipher.encryptChunk(index, true, plain, 0, sealed));
+                }
+                return received;
+            }
+        }
+    }
+    
+    private void writeFully(FileChannel channel, byte[] data, int length) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(data, 0, length);
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+    
+    private ChunkedFileCipher readCipher(FileChannel channel, SecretKey key) throws IOException, GeneralSecurityException {
+        ByteBuffer header = ByteBuffer.allocate(ChunkedFileCipher.HEADER_LENGTH);
+        while (header.hasRemaining() && channel.read(header, header.position()) != -1) {
+            // keep reading until the header is complete
+        }
+        return ChunkedFileCipher.fromHeader(header.array(), key);
+    }
+    
+    /**
+     * End an encrypted upload whose piece failed after chunks were sealed.
+     * A partial file that cannot be deleted now is left to the staging sweep.
+     */
+    private void abandon(UploadSession session) {
+        try {
+            Files.deleteIfExists(partialPath(session.getId()));
+        } catch (IOException ignored) {
+            // no session refers to it any more, so the staging sweep removes it
+        }
+        discard(session);
+    }
+    
+    /**
+     * Delete a session and give back its quota reservation
+     */
+    private void discard(UploadSession session) {
+        uploadSessionRepository.delete(session);
+        storageQuotaService.release(session.getSenderId(), session.getTotalSize());
+        sessionLocks.remove(session.getId());
+    }
+    
+    /**
+     * Cut the partial file back to the last acknowledged offset after a failed piece
+     */
+    private void truncateQuietly(String sessionId, UploadSession session) {
+        try (FileChannel channel = FileChannel.open(partialPath(sessionId), StandardOpenOption.WRITE)) {
+            long length = session.getReceivedBytes();
+            if (session.isEncrypted() && length == session.getTotalSize()) {
+                length = ChunkedFileCipher.encryptedLength(length, ChunkedFileCipher.DEFAULT_CHUNK_SIZE);
+            } else if (session.isEncrypted()) {
+                length = ChunkedFileCipher.HEADER_LENGTH
+                        + (length / ChunkedFileCipher.DEFAULT_CHUNK_SIZE)
+                        * (long) (ChunkedFileCipher.DEFAULT_CHUNK_SIZE + ChunkedFileCipher.TAG_LENGTH);
+            }
+            channel.truncate(length);
+        } catch (IOException ignored) {
+            // the next piece overwrites from the acknowledged offset anyway
+        }
+    }
+    
+    private Path partialPath(String sessionId) {
+        return fileStore.stagingPath(sessionId + PARTIAL_SUFFIX);
+    }
+    
+    /**
+     * Hash a file, feeding the same pass through a checksum
+     */
+    private static String sha256Hex(Path file, Checksum checksum) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(new CheckedInputStream(Files.newInputStream(file), checksum), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+    
+    private static byte[] decodeChecksum(String checksum) {
+        String value = checksum.trim();
+        try {
+            return value.length() == 64 ? HexFormat.of().parseHex(value) : Base64.getDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Checksum must be a hex or Base64 encoded SHA-256 digest");
+        }
+    }
+    
+    private static String fingerprint(String keyBase64) {
+        return HexFormat.of().formatHex(sha256().digest(Base64.getDecoder().decode(keyBase64)));
+    }
+    
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.messenger.user.User;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
 import java.time.LocalDateTime;
@@ -25,7 +26,8 @@ public class Friendship {
     }
     
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "snowflake")
+    @GenericGenerator(name = "snowflake", strategy = "com.messenger.id.SnowflakeIdentifierGenerator")
     private Long id;
     
     @ManyToOne(fetch = FetchType.LAZY)
@@ -0,0 +1,39 @@
+package com.messenger.group;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.GenericGenerator;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Entity representing a group conversation
+ */
+@Data
+@Entity
+@Table(name = "chat_groups")
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatGroup {
+    
+    @Id
+    @GeneratedValue(generator = "snowflake")
+    @GenericGenerator(name = "snowflake", strategy = "com.messenger.id.SnowflakeIdentifierGenerator")
+    private Long id;
+    
+    @Column(nullable = false)
+    private String name;
+    
+    @Column(name = "owner_id", nullable = false)
+    private Long ownerId;
+    
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+    
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+    }
+}
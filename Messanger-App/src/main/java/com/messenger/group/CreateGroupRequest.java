@@ -0,0 +1,31 @@
+package com.messenger.group;
+
+import javax.validation.constraints.NotBlank;
+import java.util.List;
+
+/**
+ * Data transfer object for group creation requests
+ */
+public class CreateGroupRequest {
+    
+    @NotBlank(message = "Group name cannot be blank")
+    private String name;
+    
+    private List<Long> memberIds;
+    
+    public String getName() {
+        return name;
+    }
+    
+    public void setName(String name) {
+        this.name = name;
+    }
+    
+    public List<Long> getMemberIds() {
+        return memberIds;
+    }
+    
+    public void setMemberIds(List<Long> memberIds) {
+        this.memberIds = memberIds;
+    }
+}
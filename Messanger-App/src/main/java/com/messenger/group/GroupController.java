@@ -0,0 +1,192 @@
+package com.messenger.group;
+
+import com.messenger.user.User;
+import com.messenger.user.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.*;
+
+import javax.validation.Valid;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * REST controller for group conversation operations
+ */
+@RestController
+@RequestMapping("/api/groups")
+public class GroupController {
+    
+    private final GroupService groupService;
+    private final UserService userService;
+    
+    @Autowired
+    public GroupController(GroupService groupService, UserService userService) {
+        this.groupService = groupService;
+        this.userService = userService;
+    }
+    
+    /**
+     * Create a new group owned by the current user
+     * @param request Group name and initial members
+     * @param authentication Current user's authentication
+     * @return Created group
+     */
+    @PostMapping
+    public ResponseEntity<?> createGroup(
+            @Valid @RequestBody CreateGroupRequest request,
+            Authentication authentication) {
+        
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        try {
+            ChatGroup group = groupService.createGroup(currentUser.getId(), request.getName(), request.getMemberIds());
+            return ResponseEntity.ok(group);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /**
+     * Get the group memberships of the current user, including read cursors
+     * @param authentication Current user's authentication
+     * @return List of memberships
+     */
+    @GetMapping
+    public ResponseEntity<List<GroupMember>> getMyGroups(Authentication authentication) {
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        return ResponseEntity.ok(groupService.getMemberships(currentUser.getId()));
+    }
+    
+    /**
+     * Add a member to a group
+     * @param groupId Group ID
+     * @param userId User to add
+     * @param authentication Current user's authentication
+     * @return The membership
+     */
+    @PostMapping("/{groupId}/members/{userId}")
+    public ResponseEntity<?> addMember(
+            @PathVariable Long groupId,
+            @PathVariable Long userId,
+            Authentication authentication) {
+        
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        try {
+            return ResponseEntity.ok(groupService.addMember(groupId, currentUser.getId(), userId));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /**
+     * Remove a member from a group, or leave it
+     * @param groupId Group ID
+     * @param userId User to remove
+     * @param authentication Current user's authentication
+     * @return Response status
+     */
+    @DeleteMapping("/{groupId}/members/{userId}")
+    public ResponseEntity<?> removeMember(
+            @PathVariable Long groupId,
+            @PathVariable Long userId,
+            Authentication authentication) {
+        
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        try {
+            groupService.removeMember(groupId, currentUser.getId(), userId);
+            return ResponseEntity.ok(Map.of("status", "Member removed"));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /**
+     * Get a page of the group timeline, newest first
+     * @param groupId Group ID
+     * @param before Only return messages older than this message ID
+     * @param limit Maximum number of messages
+     * @param authentication Current user's authentication
+     * @return List of messages
+     */
+    @GetMapping("/{groupId}/messages")
+    public ResponseEntity<?> getMessages(
+            @PathVariable Long groupId,
+            @RequestParam(value = "before", required = false) Long before,
+            @RequestParam(value = "limit", defaultValue = "50") int limit,
+            Authentication authentication) {
+        
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        try {
+            int pageSize = Math.max(1, Math.min(limit, 200));
+            return ResponseEntity.ok(groupService.getMessages(groupId, currentUser.getId(), before, pageSize));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /**
+     * Post a message to a group
+     * @param groupId Group ID
+     * @param request Message content
+     * @param authentication Current user's authentication
+     * @return Saved message
+     */
+    @PostMapping("/{groupId}/messages")
+    public ResponseEntity<?> postMessage(
+            @PathVariable Long groupId,
+            @Valid @RequestBody GroupMessageRequest request,
+            Authentication authentication) {
+        
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        
+        GroupMessage message = new GroupMessage();
+        message.setGroupId(groupId);
+        message.setSenderId(currentUser.getId());
+        message.setContent(request.getContent());
+        message.setEncrypted(request.isEncrypted());
+        
+        try {
+            return ResponseEntity.ok(groupService.postMessage(message));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /**
+     * Move the current user's read cursor forward
+     * @param groupId Group ID
+     * @param messageId Last read message ID
+     * @param authentication Current user's authentication
+     * @return Response status
+     */
+    @PutMapping("/{groupId}/read/{messageId}")
+    public ResponseEntity<?> markAsRead(
+            @PathVariable Long groupId,
+            @PathVariable Long messageId,
+            Authentication authentication) {
+        
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        groupService.markAsRead(groupId, currentUser.getId(), messageId);
+        return ResponseEntity.ok(Map.of("status", "Read cursor updated"));
+    }
+    
+    /**
+     * Get the number of unread messages in a group for the current user
+     * @param groupId Group ID
+     * @param authentication Current user's authentication
+     * @return Unread message count
+     */
+    @GetMapping("/{groupId}/unread-count")
+    public ResponseEntity<?> getUnreadCount(
+            @PathVariable Long groupId,
+            Authentication authentication) {
+        
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        try {
+            return ResponseEntity.ok(Map.of("unread", groupService.getUnreadCount(groupId, currentUser.getId())));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.messenger.group;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.GenericGenerator;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Entity representing a user's membership in a group, including the
+ * member's read cursor into the group timeline
+ */
+@Data
+@Entity
+@Table(name = "group_members",
+        uniqueConstraints = @UniqueConstraint(name = "uk_group_members_group_user", columnNames = {"group_id", "user_id"}),
+        indexes = @Index(name = "idx_group_members_user", columnList = "user_id"))
+@NoArgsConstructor
+@AllArgsConstructor
+public class GroupMember {
+    
+    @Id
+    @GeneratedValue(generator = "snowflake")
+    @GenericGenerator(name = "snowflake", strategy = "com.messenger.id.SnowflakeIdentifierGenerator")
+    private Long id;
+    
+    @Column(name = "group_id", nullable = false)
+    private Long groupId;
+    
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+    
+    /**
+     * ID of the last group message this member has read. Everything with a
+     * greater ID in the group is unread for this member.
+     */
+    @Column(name = "last_read_message_id", nullable = false)
+    private Long lastReadMessageId = 0L;
+    
+    @Column(name = "joined_at", nullable = false)
+    private LocalDateTime joinedAt;
+    
+    @PrePersist
+    protected void onCreate() {
+        joinedAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,61 @@
+package com.messenger.group;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Repository for GroupMember entity operations
+ */
+@Repository
+public interface GroupMemberRepository extends JpaRepository<GroupMember, Long> {
+    
+    /**
+     * Find the IDs of all members of a group
+     * @param groupId Group ID
+     * @return List of user IDs
+     */
+    @Query("SELECT gm.userId FROM GroupMember gm WHERE gm.groupId = :groupId")
+    List<Long> findUserIdsByGroupId(@Param("groupId") Long groupId);
+    
+    /**
+     * Find the membership of a user in a group
+     * @param groupId Group ID
+     * @param userId User ID
+     * @return Optional containing the membership if found
+     */
+    Optional<GroupMember> findByGroupIdAndUserId(Long groupId, Long userId);
+    
+    /**
+     * Find all memberships of a user
+     * @param userId User ID
+     * @return List of memberships
+     */
+    List<GroupMember> findByUserId(Long userId);
+    
+    /**
+     * Count members of a group
+     * @param groupId Group ID
+     * @return Number of members
+     */
+    long countByGroupId(Long groupId);
+    
+    /**
+     * Advance a member's read cursor. The cursor only ever moves forward.
+     * @param groupId Group ID
+     * @param userId User ID
+     * @param messageId ID of the last read message
+     * @return Number of updated rows
+     */
+    @Modifying
+    @Query("UPDATE GroupMember gm SET gm.lastReadMessageId = :messageId " +
+            "WHERE gm.groupId = :groupId AND gm.userId = :userId AND gm.lastReadMessageId < :messageId")
+    int advanceReadCursor(@Param("groupId") Long groupId,
+                          @Param("userId") Long userId,
+                          @Param("messageId") Long messageId);
+}
@@ -0,0 +1,53 @@
+package com.messenger.group;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.GenericGenerator;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Entity representing a message posted to a group.
+ * A group message is stored once regardless of the number of members.
+ */
+@Data
+@Entity
+@Table(name = "group_messages",
+        indexes = @Index(name = "idx_group_messages_group_id", columnList = "group_id, id"))
+@NoArgsConstructor
+@AllArgsConstructor
+public class GroupMessage {
+    
+    @Id
+    @GeneratedValue(generator = "snowflake")
+    @GenericGenerator(name = "snowflake", strategy = "com.messenger.id.SnowflakeIdentifierGenerator")
+    private Long id;
+    
+    @Column(name = "group_id", nullable = false)
+    private Long groupId;
+    
+    @Column(name = "sender_id", nullable = false)
+    private Long senderId;
+    
+    @Column(nullable = false, length = 10000)
+    private String content;
+    
+    @Column(name = "is_encrypted", nullable = false)
+    private boolean encrypted;
+    
+    @Column(name = "timestamp", nullable = false)
+    private LocalDateTime timestamp;
+    
+    /**
+     * Position of the message in the group, assigned by the group's single writer
+     */
+    @Column(name = "sequence_number")
+    private Long sequenceNumber;
+    
+    @PrePersist
+    protected void onCreate() {
+        timestamp = LocalDateTime.now();
+    }
+}
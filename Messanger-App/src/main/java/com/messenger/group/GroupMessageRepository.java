@@ -0,0 +1,41 @@
+package com.messenger.group;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/**
+ * Repository for GroupMessage entity operations
+ */
+@Repository
+public interface GroupMessageRepository extends JpaRepository<GroupMessage, Long> {
+    
+    /**
+     * Find a page of group messages older than the given message ID, newest first
+     * @param groupId Group ID
+     * @param beforeId Only messages with a smaller ID are returned
+     * @param pageable Page size
+     * @return List of messages
+     */
+    List<GroupMessage> findByGroupIdAndIdLessThanOrderByIdDesc(Long groupId, Long beforeId, Pageable pageable);
+    
+    /**
+     * Count group messages newer than the given message ID
+     * @param groupId Group ID
+     * @param afterId Only messages with a greater ID are counted
+     * @return Number of messages
+     */
+    long countByGroupIdAndIdGreaterThan(Long groupId, Long afterId);
+    
+    /**
+     * Find the highest sequence number in a group
+     * @param groupId Group ID
+     * @return Highest sequence number, or null if none was assigned yet
+     */
+    @Query("SELECT MAX(gm.sequenceNumber) FROM GroupMessage gm WHERE gm.groupId = :groupId")
+    Long findMaxSequence(@Param("groupId") Long groupId);
+}
@@ -0,0 +1,30 @@
+package com.messenger.group;
+
+import javax.validation.constraints.NotBlank;
+
+/**
+ * Data transfer object for group message requests
+ */
+public class GroupMessageRequest {
+    
+    @NotBlank(message = "Content cannot be blank")
+    private String content;
+    
+    private boolean encrypted;
+    
+    public String getContent() {
+        return content;
+    }
+    
+    public void setContent(String content) {
+        this.content = content;
+    }
+    
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+    
+    public void setEncrypted(boolean encrypted) {
+        this.encrypted = encrypted;
+    }
+}
@@ -0,0 +1,11 @@
+package com.messenger.group;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Repository for ChatGroup entity operations
+ */
+@Repository
+public interface GroupRepository extends JpaRepository<ChatGroup, Long> {
+}
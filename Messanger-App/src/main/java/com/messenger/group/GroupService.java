@@ -0,0 +1,289 @@
+package com.messenger.group;
+
+import com.messenger.chat.ConversationExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Service for managing group conversations.
+ * Messages are written once per group (fan-out-on-read); each member keeps
+ * a read cursor into the group timeline and only members with an active
+ * WebSocket session are pushed new messages.
+ */
+@Service
+public class GroupService {
+    
+    private final GroupRepository groupRepository;
+    private final GroupMemberRepository groupMemberRepository;
+    private final GroupMessageRepository groupMessageRepository;
+    private final SimpMessagingTemplate messagingTemplate;
+    private final SimpUserRegistry simpUserRegistry;
+    private final ConversationExecutor conversationExecutor;
+    private final int maxMembers;
+    
+    // Member IDs per group, loaded on first use and dropped on membership changes
+    private final Map<Long, Set<Long>> memberCache = new ConcurrentHashMap<>();
+    
+    @Autowired
+    public GroupService(GroupRepository groupRepository,
+                        GroupMemberRepository groupMemberRepository,
+                        GroupMessageRepository groupMessageRepository,
+                        SimpMessagingTemplate messagingTemplate,
+                        SimpUserRegistry simpUserRegistry,
+                        ConversationExecutor conversationExecutor,
+                        @Value("${group.max-members:5000}") int maxMembers) {
+        this.groupRepository = groupRepository;
+        this.groupMemberRepository = groupMemberRepository;
+        this.groupMessageRepository = groupMessageRepository;
+        this.messagingTemplate = messagingTemplate;
+        this.simpUserRegistry = simpUserRegistry;
+        this.conversationExecutor = conversationExecutor;
+        this.maxMembers = maxMembers;
+    }
+    
+    /**
+     * Create a new group with the owner as its first member
+     * @param ownerId Owner user ID
+     * @param name Group name
+     * @param memberIds Initial members (besides the owner)
+     * @return Created group
+     */
+    @Transactional
+    public ChatGroup createGroup(Long ownerId, String name, List<Long> memberIds) {
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException("Group name cannot be blank");
+        }
+        
+        Set<Long> initialMembers = new LinkedHashSet<>();
+        initialMembers.add(ownerId);
+        if (memberIds != null) {
+            initialMembers.addAll(memberIds);
+        }
+        if (initialMembers.size() > maxMembers) {
+            throw new IllegalArgumentException("Group cannot have more than " + maxMembers + " members");
+        }
+        
+        ChatGroup group = new ChatGroup();
+        group.setName(name);
+        group.setOwnerId(ownerId);
+        ChatGroup savedGroup = groupRepository.save(group);
+        
+        List<GroupMember> members = new ArrayList<>(initialMembers.size());
+        for (Long userId : initialMembers) {
+            GroupMember member = new GroupMember();
+            member.setGroupId(savedGroup.getId());
+            member.setUserId(userId);
+            members.add(member);
+        }
+        groupMemberRepository.saveAll(members);
+        
+        return savedGroup;
+    }
+    
+    /**
+     * Get a group by its ID
+     * @param groupId Group ID
+     * @return Group
+     * @throws IllegalArgumentException if the group does not exist
+     */
+    public ChatGroup getGroup(Long groupId) {
+        return groupRepository.findById(groupId)
+                .orElseThrow(() -> new IllegalArgumentException("Group not found with ID: " + groupId));
+    }
+    
+    /**
+     * Get all group memberships of a user
+     * @param userId User ID
+     * @return List of memberships
+     */
+    public List<GroupMember> getMemberships(Long userId) {
+        return groupMemberRepository.findByUserId(userId);
+    }
+    
+    /**
+     * Add a user to a group. Only the group owner can add members.
+     * @param groupId Group ID
+     * @param requesterId User performing the change
+     * @param userId User to add
+     * @return The membership
+     */
+    @Transactional
+    public GroupMember addMember(Long groupId, Long requesterId, Long userId) {
+        ChatGroup group = getGroup(groupId);
+        if (!group.getOwnerId().equals(requesterId)) {
+            throw new IllegalArgumentException("Only the group owner can add members");
+        }
+        
+        GroupMember existing = groupMemberRepository.findByGroupIdAndUserId(groupId, userId).orElse(null);
+        if (existing != null) {
+            return existing;
+        }
+        if (groupMemberRepository.countByGroupId(groupId) >= maxMembers) {
+            throw new IllegalArgumentException("Group cannot have more than " + maxMembers + " members");
+        }
+        
+        GroupMember member = new GroupMember();
+        member.setGroupId(groupId);
+        member.setUserId(userId);
+        GroupMember savedMember = groupMemberRepository.save(member);
+        evictMembersAfterCommit(groupId);
+        return savedMember;
+    }
+    
+    /**
+     * Remove a user from a group. The owner can remove anyone, members can only leave.
+     * @param groupId Group ID
+     * @param requesterId User performing the change
+     * @param userId User to remove
+     */
+    @Transactional
+    public void removeMember(Long groupId, Long requesterId, Long userId) {
+        ChatGroup group = getGroup(groupId);
+        if (!group.getOwnerId().equals(requesterId) && !requesterId.equals(userId)) {
+            throw new IllegalArgumentException("Only the group owner can remove other members");
+        }
+        
+        groupMemberRepository.findByGroupIdAndUserId(groupId, userId)
+                .ifPresent(groupMemberRepository::delete);
+        evictMembersAfterCommit(groupId);
+    }
+    
+    /**
+     * Drop a group's cached members once the membership change is committed.
+     * Dropping them earlier would let a concurrent lookup cache the old
+     * membership again, with nothing to drop it afterwards.
+     * @param groupId Group ID
+     */
+    private void evictMembersAfterCommit(Long groupId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            memberCache.remove(groupId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                memberCache.remove(groupId);
+            }
+        });
+    }
+    
+    /**
+     * Get the IDs of all members of a group, served from the member cache
+     * @param groupId Group ID
+     * @return Set of user IDs
+     */
+    public Set<Long> getMemberIds(Long groupId) {
+        return memberCache.computeIfAbsent(groupId,
+                id -> Set.copyOf(groupMemberRepository.findUserIdsByGroupId(id)));
+    }
+    
+    /**
+     * Check if a user is a member of a group
+     * @param groupId Group ID
+     * @param userId User ID
+     * @return true if the user is a member
+     */
+    public boolean isMember(Long groupId, Long userId) {
+        return getMemberIds(groupId).contains(userId);
+    }
+    
+    /**
+     * Store a group message once and push it to the members that are online.
+     * Runs on the group's single writer so messages are sequenced and
+     * delivered in the order they are stored.
+     * @param message Message to post
+     * @return Saved message
+     * @throws IllegalArgumentException if the sender is not a member of the group
+     */
+    public GroupMessage postMessage(GroupMessage message) {
+        Long groupId = message.getGroupId();
+        if (!isMember(groupId, message.getSenderId())) {
+            throw new IllegalArgumentException("Cannot send message: user is not a member of the group");
+        }
+        
+        return conversationExecutor.execute(ConversationExecutor.groupKey(groupId), state -> {
+            long sequence = state.getLastSequence(() -> {
+                Long last = groupMessageRepository.findMaxSequence(groupId);
+                return last != null ? last : 0L;
+            }) + 1;
+            message.setSequenceNumber(sequence);
+            GroupMessage savedMessage = groupMessageRepository.save(message);
+            state.setLastSequence(sequence);
+            
+            deliverToOnlineMembers(savedMessage);
+            return savedMessage;
+        });
+    }
+    
+    /**
+     * Get a page of a group's timeline, newest first
+     * @param groupId Group ID
+     * @param userId User requesting the timeline
+     * @param beforeId Only return messages older than this ID (null for the latest page)
+     * @param limit Maximum number of messages
+     * @return List of messages
+     */
+    public List<GroupMessage> getMessages(Long groupId, Long userId, Long beforeId, int limit) {
+        if (!isMember(groupId, userId)) {
+            throw new IllegalArgumentException("Cannot access messages: user is not a member of the group");
+        }
+        
+        long before = beforeId != null ? beforeId : Long.MAX_VALUE;
+        return groupMessageRepository.findByGroupIdAndIdLessThanOrderByIdDesc(
+                groupId, before, PageRequest.of(0, limit));
+    }
+    
+    /**
+     * Move a member's read cursor forward to the given message
+     * @param groupId Group ID
+     * @param userId User ID
+     * @param messageId Last read message ID
+     */
+    @Transactional
+    public void markAsRead(Long groupId, Long userId, Long messageId) {
+        groupMemberRepository.advanceReadCursor(groupId, userId, messageId);
+    }
+    
+    /**
+     * Count the messages a member has not read yet
+     * @param groupId Group ID
+     * @param userId User ID
+     * @return Number of unread messages
+     */
+    public long getUnreadCount(Long groupId, Long userId) {
+        GroupMember member = groupMemberRepository.findByGroupIdAndUserId(groupId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("User is not a member of the group"));
+        return groupMessageRepository.countByGroupIdAndIdGreaterThan(groupId, member.getLastReadMessageId());
+    }
+    
+    /**
+     * Push a message to every member with a connected WebSocket session.
+     * Offline members pick the message up from the timeline when they return.
+     */
+    private void deliverToOnlineMembers(GroupMessage message) {
+        for (Long memberId : getMemberIds(message.getGroupId())) {
+            if (memberId.equals(message.getSenderId())) {
+                continue;
+            }
+            
+            String user = String.valueOf(memberId);
+            if (simpUserRegistry.getUser(user) != null) {
+                messagingTemplate.convertAndSendToUser(user, "/queue/group-messages", message);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.messenger.group;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.handler.annotation.MessageMapping;
+import org.springframework.messaging.handler.annotation.Payload;
+import org.springframework.stereotype.Controller;
+
+/**
+ * WebSocket controller for real-time group message exchange
+ */
+@Controller
+public class GroupWebSocketController {
+    
+    private final GroupService groupService;
+    
+    @Autowired
+    public GroupWebSocketController(GroupService groupService) {
+        this.groupService = groupService;
+    }
+    
+    /**
+     * Handle a message sent to a group. The service stores it once and
+     * pushes it to the online members.
+     * @param message The message object
+     */
+    @MessageMapping("/group.send")
+    public void sendGroupMessage(@Payload GroupMessage message) {
+        groupService.postMessage(message);
+    }
+}
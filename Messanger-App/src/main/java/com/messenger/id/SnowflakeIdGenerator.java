@@ -0,0 +1,85 @@
+package com.messenger.id;
+
+import java.time.Instant;
+
+/**
+ * Time-ordered 64-bit ID generator in the style of Twitter's Snowflake.
+ *
+ * Layout (most significant bit first):
+ * <pre>
+ *   41 bits  milliseconds since {@link #EPOCH}
+ *    5 bits  node ID
+ *    7 bits  per-millisecond sequence
+ * </pre>
+ * IDs use 53 bits so that they stay exact when read as JavaScript numbers
+ * by the frontend, which leaves room for ~69 years, 32 nodes and 128 IDs
+ * per millisecond per node.
+ *
+ * The generator never moves backwards: if the wall clock steps back, IDs
+ * keep being issued from the last timestamp seen, and when a millisecond's
+ * sequence is exhausted the next millisecond is borrowed instead of blocking.
+ */
+public class SnowflakeIdGenerator {
+    
+    public static final long EPOCH = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+    
+    static final int NODE_BITS = 5;
+    static final int SEQUENCE_BITS = 7;
+    static final int TIMESTAMP_BITS = 41;
+    
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+    
+    private final long nodeId;
+    
+    private long lastTimestamp = -1L;
+    private long sequence = 0L;
+    
+    /**
+     * Create a generator for the given node
+     * @param nodeId Node ID, unique per running instance (0-31)
+     */
+    public SnowflakeIdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + MAX_NODE_ID);
+        }
+        this.nodeId = nodeId;
+    }
+    
+    /**
+     * Generate the next ID
+     * @return A unique, strictly increasing ID
+     */
+    public synchronized long nextId() {
+        long timestamp = Math.max(System.currentTimeMillis() - EPOCH, lastTimestamp);
+        
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                // Sequence exhausted for this millisecond, borrow the next one
+                timestamp = ++lastTimestamp;
+            }
+        } else {
+            sequence = 0;
+            lastTimestamp = timestamp;
+        }
+        
+        if (timestamp > MAX_TIMESTAMP) {
+            throw new IllegalStateException("Snowflake ID timestamp range exhausted");
+        }
+        
+        return (timestamp << (NODE_BITS + SEQUENCE_BITS))
+                | (nodeId << SEQUENCE_BITS)
+                | sequence;
+    }
+    
+    /**
+     * Extract the creation time encoded in an ID
+     * @param id ID produced by this generator
+     * @return Creation instant
+     */
+    public static Instant timestampOf(long id) {
+        return Instant.ofEpochMilli((id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH);
+    }
+}
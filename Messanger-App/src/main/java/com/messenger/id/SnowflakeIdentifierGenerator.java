@@ -0,0 +1,53 @@
+package com.messenger.id;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hibernate identifier generator backed by {@link SnowflakeIdGenerator}.
+ *
+ * IDs are assigned in the application before the INSERT, so unlike
+ * {@code GenerationType.IDENTITY} Hibernate can group inserts into JDBC
+ * batches. The node ID is read from the {@value #NODE_ID_SETTING} Hibernate
+ * setting ({@code spring.jpa.properties.messenger.id.node-id}).
+ */
+public class SnowflakeIdentifierGenerator implements IdentifierGenerator {
+    
+    public static final String NODE_ID_SETTING = "messenger.id.node-id";
+    
+    // One generator per node ID, shared by every entity using this strategy
+    private static final Map<Integer, SnowflakeIdGenerator> GENERATORS = new ConcurrentHashMap<>();
+    
+    private SnowflakeIdGenerator generator;
+    
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        Object setting = serviceRegistry.getService(ConfigurationService.class)
+                .getSettings()
+                .get(NODE_ID_SETTING);
+        
+        int nodeId;
+        try {
+            nodeId = setting != null ? Integer.parseInt(setting.toString().trim()) : 0;
+        } catch (NumberFormatException e) {
+            throw new MappingException("Invalid " + NODE_ID_SETTING + ": " + setting, e);
+        }
+        
+        this.generator = GENERATORS.computeIfAbsent(nodeId, SnowflakeIdGenerator::new);
+    }
+    
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) throws HibernateException {
+        return generator.nextId();
+    }
+}
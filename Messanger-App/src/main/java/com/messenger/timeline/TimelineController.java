@@ -0,0 +1,65 @@
+package com.messenger.timeline;
+
+import com.messenger.chat.MessageService;
+import com.messenger.user.User;
+import com.messenger.user.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+
+/**
+ * REST controller for the unified conversation timeline
+ */
+@RestController
+@RequestMapping("/api/timeline")
+public class TimelineController {
+    
+    private static final int MAX_PAGE_SIZE = 200;
+    
+    private final TimelineService timelineService;
+    private final MessageService messageService;
+    private final UserService userService;
+    
+    @Autowired
+    public TimelineController(TimelineService timelineService,
+                              MessageService messageService,
+                              UserService userService) {
+        this.timelineService = timelineService;
+        this.messageService = messageService;
+        this.userService = userService;
+    }
+    
+    /**
+     * Get a page of messages, files and calls between the current user and
+     * another user, newest first. Only available if the users are friends.
+     * @param otherUserId Other user ID
+     * @param cursor Cursor returned with the previous page
+     * @param limit Maximum number of entries
+     * @param authentication Current user's authentication
+     * @return Timeline page or error
+     */
+    @GetMapping("/{otherUserId}")
+    public ResponseEntity<?> getTimeline(
+            @PathVariable Long otherUserId,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "limit", defaultValue = "50") int limit,
+            Authentication authentication) {
+        
+        User currentUser = userService.getUserByUsername(authentication.getName());
+        
+        if (!messageService.canSendMessage(currentUser.getId(), otherUserId)) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", "Cannot access timeline: users are not friends"));
+        }
+        
+        try {
+            int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+            return ResponseEntity.ok(timelineService.getTimeline(currentUser.getId(), otherUserId, cursor, pageSize));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.messenger.timeline;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Opaque keyset cursor marking a position in a conversation timeline.
+ * Timelines are ordered by timestamp, then type, then ID, all descending.
+ */
+public class TimelineCursor {
+    
+    private final LocalDateTime timestamp;
+    private final TimelineEntry.Type type;
+    private final long id;
+    
+    public TimelineCursor(LocalDateTime timestamp, TimelineEntry.Type type, long id) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.id = id;
+    }
+    
+    /**
+     * Cursor positioned at an entry; the next page starts after it
+     * @param entry Last entry of the current page
+     * @return Cursor
+     */
+    public static TimelineCursor after(TimelineEntry entry) {
+        return new TimelineCursor(entry.getTimestamp(), entry.getType(), entry.getId());
+    }
+    
+    public LocalDateTime getTimestamp() {
+        return timestamp;
+    }
+    
+    public TimelineEntry.Type getType() {
+        return type;
+    }
+    
+    public long getId() {
+        return id;
+    }
+    
+    /**
+     * ID bound to use for a source of the given type at this cursor's timestamp.
+     * Types ordered before the cursor's type still have entries left at the same
+     * timestamp, types ordered after it have none.
+     * @param sourceType Type of the source being queried
+     * @return Exclusive upper bound on IDs at the cursor's timestamp
+     */
+    public long idBoundFor(TimelineEntry.Type sourceType) {
+        int order = sourceType.compareTo(type);
+        if (order < 0) {
+            return Long.MAX_VALUE;
+        }
+        return order == 0 ? id : Long.MIN_VALUE;
+    }
+    
+    /**
+     * Encode the cursor for clients
+     * @return URL-safe cursor string
+     */
+    public String encode() {
+        String raw = timestamp + "|" + type.name() + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Decode a cursor received from a client
+     * @param encoded Cursor string
+     * @return Cursor
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static TimelineCursor decode(String encoded) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\\|");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid timeline cursor");
+            }
+            return new TimelineCursor(LocalDateTime.parse(parts[0]),
+                    TimelineEntry.Type.valueOf(parts[1]),
+                    Long.parseLong(parts[2]));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid timeline cursor", e);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.messenger.timeline;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * A single item in a conversation timeline: a message, a shared file or a call
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TimelineEntry {
+    
+    /**
+     * Enum for timeline item types. The declaration order breaks ties
+     * between items of different types with the same timestamp.
+     */
+    public enum Type {
+        MESSAGE, FILE, CALL
+    }
+    
+    private Type type;
+    private Long id;
+    private LocalDateTime timestamp;
+    private Object item;
+}
@@ -0,0 +1,22 @@
+package com.messenger.timeline;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * A page of a conversation timeline, newest first
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TimelinePage {
+    private List<TimelineEntry> entries;
+    
+    /**
+     * Cursor for the next (older) page, or null when there are no more entries
+     */
+    private String nextCursor;
+}
@@ -0,0 +1,150 @@
+package com.messenger.timeline;
+
+import com.messenger.call.CallRepository;
+import com.messenger.chat.MessageRepository;
+import com.messenger.file.FileRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Service building a single paginated timeline of the messages, files and
+ * calls exchanged between two users.
+ *
+ * Each source is read per direction with a keyset range scan limited to one
+ * page, and the resulting sorted runs are combined with a k-way merge, so a
+ * page costs a handful of index scans of at most {@code limit} rows each.
+ */
+@Service
+public class TimelineService {
+    
+    // Upper bound used for the first page, when there is no cursor yet
+    private static final LocalDateTime FAR_FUTURE = LocalDateTime.of(9999, 12, 31, 23, 59, 59);
+    
+    private static final Comparator<TimelineEntry> NEWEST_FIRST = Comparator
+            .comparing(TimelineEntry::getTimestamp)
+            .thenComparing(TimelineEntry::getType)
+            .thenComparing(TimelineEntry::getId)
+            .reversed();
+    
+    private final MessageRepository messageRepository;
+    private final FileRepository fileRepository;
+    private final CallRepository callRepository;
+    
+    @Autowired
+    public TimelineService(MessageRepository messageRepository,
+                           FileRepository fileRepository,
+                           CallRepository callRepository) {
+        this.messageRepository = messageRepository;
+        this.fileRepository = fileRepository;
+        this.callRepository = callRepository;
+    }
+    
+    /**
+     * Get a page of the timeline between two users, newest first
+     * @param userId Current user ID
+     * @param otherUserId Other user ID
+     * @param cursor Cursor from the previous page, or null for the latest entries
+     * @param limit Maximum number of entries
+     * @return Page of entries with the cursor for the next page
+     */
+    public TimelinePage getTimeline(Long userId, Long otherUserId, String cursor, int limit) {
+        TimelineCursor position = cursor != null ? TimelineCursor.decode(cursor) : null;
+        LocalDateTime before = position != null ? position.getTimestamp() : FAR_FUTURE;
+        Pageable page = PageRequest.of(0, limit);
+        
+        List<List<TimelineEntry>> runs = new ArrayList<>(6);
+        addRuns(runs, userId, otherUserId, position, before, page);
+        if (!userId.equals(otherUserId)) {
+            addRuns(runs, otherUserId, userId, position, before, page);
+        }
+        
+        List<TimelineEntry> entries = merge(runs, limit);
+        String nextCursor = entries.size() == limit
+                ? TimelineCursor.after(entries.get(entries.size() - 1)).encode()
+                : null;
+        return new TimelinePage(entries, nextCursor);
+    }
+    
+    /**
+     * Read one page from each source for a single direction
+     */
+    private void addRuns(List<List<TimelineEntry>> runs, Long fromId, Long toId,
+                         TimelineCursor position, LocalDateTime before, Pageable page) {
+        runs.add(messageRepository.findPageBySenderAndRecipient(
+                        fromId, toId, before, idBound(position, TimelineEntry.Type.MESSAGE), page)
+                .stream()
+                .map(m -> new TimelineEntry(TimelineEntry.Type.MESSAGE, m.getId(), m.getTimestamp(), m))
+                .collect(Collectors.toList()));
+        
+        runs.add(fileRepository.findPageBySenderAndRecipient(
+                        fromId, toId, before, idBound(position, TimelineEntry.Type.FILE), page)
+                .stream()
+                .map(f -> new TimelineEntry(TimelineEntry.Type.FILE, f.getId(), f.getUploadTime(), f))
+                .collect(Collectors.toList()));
+        
+        runs.add(callRepository.findPageByCallerAndReceiver(
+                        fromId, toId, before, idBound(position, TimelineEntry.Type.CALL), page)
+                .stream()
+                .map(c -> new TimelineEntry(TimelineEntry.Type.CALL, c.getId(), c.getStartTime(), c))
+                .collect(Collectors.toList()));
+    }
+    
+    private long idBound(TimelineCursor position, TimelineEntry.Type type) {
+        return position != null ? position.idBoundFor(type) : Long.MAX_VALUE;
+    }
+    
+    /**
+     * Merge runs that are each sorted newest first, taking at most limit entries
+     * @param runs Sorted runs
+     * @param limit Maximum number of entries
+     * @return Merged entries, newest first
+     */
+    static List<TimelineEntry> merge(List<List<TimelineEntry>> runs, int limit) {
+        PriorityQueue<RunCursor> heads = new PriorityQueue<>(
+                Math.max(1, runs.size()), (a, b) -> NEWEST_FIRST.compare(a.head(), b.head()));
+        for (List<TimelineEntry> run : runs) {
+            if (!run.isEmpty()) {
+                heads.add(new RunCursor(run));
+            }
+        }
+        
+        List<TimelineEntry> merged = new ArrayList<>(limit);
+        while (merged.size() < limit && !heads.isEmpty()) {
+            RunCursor next = heads.poll();
+            merged.add(next.head());
+            if (next.advance()) {
+                heads.add(next);
+            }
+        }
+        return merged;
+    }
+    
+    /**
+     * Read position within one sorted run
+     */
+    private static class RunCursor {
+        private final List<TimelineEntry> run;
+        private int index;
+        
+        RunCursor(List<TimelineEntry> run) {
+            this.run = run;
+        }
+        
+        TimelineEntry head() {
+            return run.get(index);
+        }
+        
+        boolean advance() {
+            return ++index < run.size();
+        }
+    }
+}
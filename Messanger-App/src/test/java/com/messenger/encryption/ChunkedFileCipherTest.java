@@ -0,0 +1,178 @@
+package com.messenger.encryption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkedFileCipherTest {
+    
+    private static final int CHUNK = ChunkedFileCipher.DEFAULT_CHUNK_SIZE;
+    
+    private final SecretKey key = newKey();
+    
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 2 * CHUNK, 3 * CHUNK + 7})
+    void roundTripsAtChunkBoundaries(int length) throws Exception {
+        byte[] plain = randomBytes(length);
+        
+        byte[] encrypted = encrypt(plain);
+        
+        assertEquals(ChunkedFileCipher.encryptedLength(length, CHUNK), encrypted.length);
+        assertArrayEquals(plain, decrypt(encrypted));
+    }
+    
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 2, 3})
+    void seeksToAChunkWithoutReadingTheOnesBeforeIt(int chunk) throws Exception {
+        byte[] plain = randomBytes(3 * CHUNK + 7);
+        byte[] encrypted = encrypt(plain);
+        
+        ChunkedFileCipher cipher = ChunkedFileCipher.fromHeader(encrypted, key);
+        int offset = (int) cipher.chunkOffset(chunk);
+        InputStream in = new ByteArrayInputStream(encrypted, offset, encrypted.length - offset);
+        
+        try (InputStream plainIn = cipher.decryptingStream(in, chunk)) {
+            assertArrayEquals(Arrays.copyOfRange(plain, chunk * CHUNK, plain.length), plainIn.readAllBytes());
+        }
+    }
+    
+    @Test
+    void rejectsAChunkReadAtTheWrongIndex() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK));
+        
+        ChunkedFileCipher cipher = ChunkedFileCipher.fromHeader(encrypted, key);
+        int offset = (int) cipher.chunkOffset(1);
+        InputStream in = new ByteArrayInputStream(encrypted, offset, encrypted.length - offset);
+        
+        assertThrows(IOException.class, () -> cipher.decryptingStream(in, 2).readAllBytes());
+    }
+    
+    @Test
+    void exactMultipleOfTheChunkSizeEndsWithAnEmptyFinalChunk() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(2 * CHUNK));
+        
+        ChunkedFileCipher cipher = ChunkedFileCipher.fromHeader(encrypted, key);
+        assertEquals(cipher.chunkOffset(2) + ChunkedFileCipher.TAG_LENGTH, encrypted.length);
+    }
+    
+    @Test
+    void rejectsAFileTruncatedAtAChunkBoundary() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(2 * CHUNK + 100));
+        ChunkedFileCipher cipher = ChunkedFileCipher.fromHeader(encrypted, key);
+        
+        // Every chunk left is a full one, so none of them is marked final
+        byte[] truncated = Arrays.copyOf(encrypted, (int) cipher.chunkOffset(2));
+        assertThrows(IOException.class, () -> decrypt(truncated));
+    }
+    
+    @Test
+    void rejectsAFileWithoutItsEmptyFinalChunk() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(CHUNK));
+        
+        byte[] truncated = Arrays.copyOf(encrypted, encrypted.length - ChunkedFileCipher.TAG_LENGTH);
+        assertThrows(IOException.class, () -> decrypt(truncated));
+    }
+    
+    @Test
+    void rejectsAFullChunkPassedOffAsTheLastOne() throws Exception {
+        ChunkedFileCipher cipher = ChunkedFileCipher.create(key, 16);
+        
+        assertThrows(IllegalArgumentException.class,
+                () -> cipher.encryptChunk(0, true, new byte[16], 16, new byte[32]));
+        assertThrows(IllegalArgumentException.class,
+                () -> cipher.encryptChunk(0, false, new byte[16], 15, new byte[32]));
+    }
+    
+    @Test
+    void authenticatesWhetherAChunkIsTheLastOne() throws Exception {
+        ChunkedFileCipher cipher = ChunkedFileCipher.create(key, 16);
+        byte[] sealed = new byte[16 + ChunkedFileCipher.TAG_LENGTH];
+        byte[] plain = new byte[16];
+        
+        int length = cipher.encryptChunk(0, false, new byte[16], 16, sealed);
+        assertThrows(GeneralSecurityException.class, () -> cipher.decryptChunk(0, true, sealed, length, plain));
+        
+        int lastLength = cipher.encryptChunk(1, true, new byte[5], 5, sealed);
+        assertThrows(GeneralSecurityException.class, () -> cipher.decryptChunk(1, false, sealed, lastLength, plain));
+        assertEquals(5, cipher.decryptChunk(1, true, sealed, lastLength, plain));
+    }
+    
+    @Test
+    void rejectsSwappedChunks() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK));
+        ChunkedFileCipher cipher = ChunkedFileCipher.fromHeader(encrypted, key);
+        int sealedChunk = CHUNK + ChunkedFileCipher.TAG_LENGTH;
+        int first = (int) cipher.chunkOffset(0);
+        int second = (int) cipher.chunkOffset(1);
+        
+        byte[] swapped = encrypted.clone();
+        System.arraycopy(encrypted, first, swapped, second, sealedChunk);
+        System.arraycopy(encrypted, second, swapped, first, sealedChunk);
+        assertThrows(IOException.class, () -> decrypt(swapped));
+    }
+    
+    @Test
+    void rejectsTamperedCiphertextAndWrongKeys() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(CHUNK + 1));
+        
+        byte[] tampered = encrypted.clone();
+        tampered[ChunkedFileCipher.HEADER_LENGTH + 5] ^= 1;
+        assertThrows(IOException.class, () -> decrypt(tampered));
+        
+        assertThrows(IOException.class,
+                () -> ChunkedFileCipher.decryptingStream(new ByteArrayInputStream(encrypted), newKey()).readAllBytes());
+    }
+    
+    @Test
+    void recognisesOnlyItsOwnHeader() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(10));
+        
+        assertTrue(ChunkedFileCipher.isChunkedHeader(encrypted));
+        assertFalse(ChunkedFileCipher.isChunkedHeader(Arrays.copyOf(encrypted, 16)));
+        assertFalse(ChunkedFileCipher.isChunkedHeader(new byte[ChunkedFileCipher.HEADER_LENGTH]));
+    }
+    
+    private byte[] encrypt(byte[] plain) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(plain.length, ChunkedFileCipher.encrypt(new ByteArrayInputStream(plain), out, key));
+        return out.toByteArray();
+    }
+    
+    private byte[] decrypt(byte[] encrypted) throws Exception {
+        try (InputStream in = ChunkedFileCipher.decryptingStream(new ByteArrayInputStream(encrypted), key)) {
+            return in.readAllBytes();
+        }
+    }
+    
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+    
+    private static SecretKey newKey() {
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(256);
+            return keyGenerator.generateKey();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
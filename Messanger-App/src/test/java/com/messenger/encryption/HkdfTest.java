@@ -0,0 +1,49 @@
+package com.messenger.encryption;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HkdfTest {
+    
+    private static final HexFormat HEX = HexFormat.of();
+    
+    @Test
+    void matchesRfc5869TestCase1() throws Exception {
+        byte[] inputKeyMaterial = new byte[22];
+        Arrays.fill(inputKeyMaterial, (byte) 0x0b);
+        byte[] salt = HEX.parseHex("000102030405060708090a0b0c");
+        byte[] info = HEX.parseHex("f0f1f2f3f4f5f6f7f8f9");
+        
+        byte[] pseudoRandomKey = Hkdf.extract(salt, inputKeyMaterial);
+        assertArrayEquals(HEX.parseHex("077709362c2e32df0ddc3f0dc47bba6390b6c73bb50f9c3122ec844ad7c2b3e5"),
+                pseudoRandomKey);
+        
+        byte[] outputKeyMaterial = Hkdf.expand(pseudoRandomKey, info, 42);
+        assertArrayEquals(HEX.parseHex("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf"
+                + "34007208d5b887185865"), outputKeyMaterial);
+    }
+    
+    @Test
+    void matchesRfc5869TestCase3WithoutSaltOrInfo() throws Exception {
+        byte[] inputKeyMaterial = new byte[22];
+        Arrays.fill(inputKeyMaterial, (byte) 0x0b);
+        
+        byte[] pseudoRandomKey = Hkdf.extract(null, inputKeyMaterial);
+        assertArrayEquals(HEX.parseHex("19ef24a32c717b167f33a91d6f648bdf96596776afdb6377ac434c1c293ccb04"),
+                pseudoRandomKey);
+        
+        byte[] outputKeyMaterial = Hkdf.expand(pseudoRandomKey, new byte[0], 42);
+        assertArrayEquals(HEX.parseHex("8da4e775a563c18f715f802a063c5a31b8a11f5c5ee1879ec3454e5f3c738d2d"
+                + "9d201395faa4b61a96c8"), outputKeyMaterial);
+    }
+    
+    @Test
+    void rejectsOutputLongerThan255Blocks() {
+        assertThrows(IllegalArgumentException.class, () -> Hkdf.expand(new byte[32], new byte[0], 255 * 32 + 1));
+    }
+}
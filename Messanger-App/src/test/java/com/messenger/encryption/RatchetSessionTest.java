@@ -0,0 +1,172 @@
+package com.messenger.encryption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RatchetSessionTest {
+    
+    private static final int MAX_SKIP = 1000;
+    private static final int MAX_SKIPPED_KEYS = 200;
+    
+    @ParameterizedTest
+    @EnumSource(RatchetSession.Mode.class)
+    void bothPartiesDeriveTheSameMessageKeys(RatchetSession.Mode mode) throws Exception {
+        RatchetSession alice = newSession("alice", mode);
+        RatchetSession bob = newSession("bob", mode);
+        establish(alice, bob);
+        
+        for (int i = 0; i < 3; i++) {
+            SecretKey sent = alice.nextMessageKey();
+            assertArrayEquals(sent.getEncoded(), bob.nextMessageKey().getEncoded());
+        }
+    }
+    
+    @ParameterizedTest
+    @EnumSource(RatchetSession.Mode.class)
+    void establishedSessionRoundTripsThroughItsBytes(RatchetSession.Mode mode) throws Exception {
+        RatchetSession alice = newSession("alice", mode);
+        RatchetSession bob = newSession("bob", mode);
+        establish(alice, bob);
+        alice.nextMessageKey();
+        bob.nextMessageKey();
+        
+        RatchetSession restored = RatchetSession.fromBytes("alice", alice.toBytes());
+        
+        assertEquals(mode, restored.getMode());
+        assertArrayEquals(alice.getPublicKey().getEncoded(), restored.getPublicKey().getEncoded());
+        assertArrayEquals(alice.toBytes(), restored.toBytes());
+        assertArrayEquals(bob.nextMessageKey().getEncoded(), restored.nextMessageKey().getEncoded());
+    }
+    
+    @ParameterizedTest
+    @EnumSource(RatchetSession.Mode.class)
+    void restoredKeyPairStillAgreesOnASecret(RatchetSession.Mode mode) throws Exception {
+        RatchetSession alice = newSession("alice", mode);
+        RatchetSession bob = newSession("bob", mode);
+        
+        // Establish against a restored copy, which only works if its private key survived
+        RatchetSession restored = RatchetSession.fromBytes("alice", alice.toBytes());
+        establish(restored, bob);
+        
+        assertArrayEquals(bob.nextMessageKey().getEncoded(), restored.nextMessageKey().getEncoded());
+    }
+    
+    @Test
+    void persistedLayoutHasTheDocumentedSizes() throws Exception {
+        for (RatchetSession.Mode mode : RatchetSession.Mode.values()) {
+            RatchetSession session = newSession("session", mode);
+            int keyPairLength = mode == RatchetSession.Mode.EC_P256 ? 96 : 64;
+            assertEquals(6 + keyPairLength, session.toBytes().length);
+            
+            establish(session, newSession("other", mode));
+            assertEquals(6 + keyPairLength + 64, session.toBytes().length);
+        }
+    }
+    
+    @Test
+    void persistedHeaderCarriesVersionFlagsAndChainIndex() throws Exception {
+        RatchetSession session = newSession("session", RatchetSession.Mode.X25519_HKDF);
+        establish(session, newSession("other", RatchetSession.Mode.X25519_HKDF));
+        session.nextMessageKeys(3);
+        
+        ByteBuffer state = ByteBuffer.wrap(session.toBytes());
+        assertEquals(RatchetSession.FORMAT_VERSION, state.get());
+        // Established and X25519
+        assertEquals(3, state.get());
+        assertEquals(3, state.getInt());
+    }
+    
+    @ParameterizedTest
+    @EnumSource(RatchetSession.Mode.class)
+    void unestablishedSessionRoundTripsThroughItsBytes(RatchetSession.Mode mode) throws Exception {
+        RatchetSession session = newSession("session", mode);
+        
+        RatchetSession restored = RatchetSession.fromBytes("session", session.toBytes());
+        
+        assertEquals(mode, restored.getMode());
+        assertArrayEquals(session.toBytes(), restored.toBytes());
+        assertThrows(IllegalArgumentException.class, restored::nextMessageKey);
+    }
+    
+    @Test
+    void rejectsTruncatedOrUnknownState() throws Exception {
+        byte[] state = newSession("session", RatchetSession.Mode.EC_P256).toBytes();
+        
+        assertThrows(IllegalArgumentException.class,
+                () -> RatchetSession.fromBytes("session", Arrays.copyOf(state, state.length - 1)));
+        state[0] = (byte) (RatchetSession.FORMAT_VERSION + 1);
+        assertThrows(IllegalArgumentException.class, () -> RatchetSession.fromBytes("session", state));
+    }
+    
+    @Test
+    void outOfOrderKeysMatchTheirPositionInTheChain() throws Exception {
+        RatchetSession sender = newSession("sender", RatchetSession.Mode.X25519_HKDF);
+        RatchetSession receiver = newSession("receiver", RatchetSession.Mode.X25519_HKDF);
+        establish(sender, receiver);
+        List<RatchetSession.IndexedMessageKey> sent = sender.nextMessageKeys(5);
+        
+        assertArrayEquals(sent.get(3).getKey().getEncoded(),
+                receiver.messageKey(3, MAX_SKIP, MAX_SKIPPED_KEYS).getEncoded());
+        assertArrayEquals(sent.get(0).getKey().getEncoded(),
+                receiver.messageKey(0, MAX_SKIP, MAX_SKIPPED_KEYS).getEncoded());
+        assertArrayEquals(sent.get(4).getKey().getEncoded(),
+                receiver.messageKey(4, MAX_SKIP, MAX_SKIPPED_KEYS).getEncoded());
+        assertArrayEquals(sent.get(2).getKey().getEncoded(),
+                receiver.messageKey(2, MAX_SKIP, MAX_SKIPPED_KEYS).getEncoded());
+        
+        // Each skipped key is handed out once
+        assertThrows(IllegalArgumentException.class, () -> receiver.messageKey(0, MAX_SKIP, MAX_SKIPPED_KEYS));
+    }
+    
+    @Test
+    void skippedKeysAreBounded() throws Exception {
+        RatchetSession sender = newSession("sender", RatchetSession.Mode.EC_P256);
+        RatchetSession receiver = newSession("receiver", RatchetSession.Mode.EC_P256);
+        establish(sender, receiver);
+        List<RatchetSession.IndexedMessageKey> sent = sender.nextMessageKeys(6);
+        
+        receiver.messageKey(5, MAX_SKIP, 2);
+        
+        // Only the two most recently skipped keys are kept
+        assertEquals(2, receiver.getSkippedKeyCount());
+        assertThrows(IllegalArgumentException.class, () -> receiver.messageKey(2, MAX_SKIP, 2));
+        assertArrayEquals(sent.get(3).getKey().getEncoded(), receiver.messageKey(3, MAX_SKIP, 2).getEncoded());
+        assertArrayEquals(sent.get(4).getKey().getEncoded(), receiver.messageKey(4, MAX_SKIP, 2).getEncoded());
+        assertEquals(0, receiver.getSkippedKeyCount());
+    }
+    
+    @Test
+    void refusesToSkipTooFarAhead() throws Exception {
+        RatchetSession sender = newSession("sender", RatchetSession.Mode.X25519_HKDF);
+        RatchetSession receiver = newSession("receiver", RatchetSession.Mode.X25519_HKDF);
+        establish(sender, receiver);
+        
+        assertThrows(IllegalArgumentException.class, () -> receiver.messageKey(11, 10, MAX_SKIPPED_KEYS));
+    }
+    
+    private static RatchetSession newSession(String id, RatchetSession.Mode mode) {
+        return new RatchetSession(id, mode, mode.getKeyAlgorithm().generate());
+    }
+    
+    /**
+     * Run the first ratchet step on both sides with each other's current public key
+     */
+    private static void establish(RatchetSession first, RatchetSession second) throws Exception {
+        RatchetSession.Mode mode = first.getMode();
+        PublicKey firstKey = first.getPublicKey();
+        PublicKey secondKey = second.getPublicKey();
+        first.establish(secondKey, mode.getKeyAlgorithm().generate());
+        second.establish(firstKey, mode.getKeyAlgorithm().generate());
+    }
+}